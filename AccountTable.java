@@ -0,0 +1,116 @@
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// ---------------- AccountTable class ----------------
+// Accounts keyed by their primitive account number. Numbers are handed out
+// densely from nextAccountNumber, so the number itself is the index: a
+// directory of fixed-size chunks, each allocated the first time a number in
+// its range is used. A lookup is two array reads with no boxing and no hashing.
+//
+// get() never locks and is safe from any thread; put() is serialized. Accounts
+// are never removed, so a reader can only ever miss an account being created
+// concurrently, never see a stale one.
+final class AccountTable implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile AtomicReferenceArray<Account>[] chunks = newDirectory(0);
+    private volatile int size;
+
+    public Account get(int accountNumber) {
+        if (accountNumber < 0) return null;
+        AtomicReferenceArray<Account>[] dir = chunks;
+        int c = accountNumber >>> CHUNK_SHIFT;
+        if (c >= dir.length) return null;
+        AtomicReferenceArray<Account> chunk = dir[c];
+        return chunk == null ? null : chunk.get(accountNumber & CHUNK_MASK);
+    }
+
+    public synchronized void put(Account a) {
+        int accNo = a.getAccountNumber();
+        if (accNo < 0) throw new IllegalArgumentException("Negative account number: " + accNo);
+        int c = accNo >>> CHUNK_SHIFT;
+        AtomicReferenceArray<Account>[] dir = chunks;
+        if (c >= dir.length) {
+            dir = Arrays.copyOf(dir, Math.max(c + 1, dir.length * 2));
+            chunks = dir;
+        }
+        AtomicReferenceArray<Account> chunk = dir[c];
+        if (chunk == null) {
+            chunk = new AtomicReferenceArray<>(CHUNK_SIZE);
+            dir[c] = chunk;
+            chunks = dir; // volatile write republishes the directory with the new chunk
+        }
+        if (chunk.getAndSet(accNo & CHUNK_MASK, a) == null) size++;
+    }
+
+    public int size() { return size; }
+
+    // Visits every account in account-number order
+    public void forEach(Consumer<Account> action) {
+        for (AtomicReferenceArray<Account> chunk : chunks) {
+            if (chunk == null) continue;
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                Account a = chunk.get(i);
+                if (a != null) action.accept(a);
+            }
+        }
+    }
+
+    public Collection<Account> values() {
+        List<Account> list = new ArrayList<>(size);
+        forEach(list::add);
+        return list;
+    }
+
+    // Read-only Map view for callers that want one; lookups go straight to the table
+    public Map<Integer, Account> asMap() {
+        return new AbstractMap<Integer, Account>() {
+            @Override
+            public Account get(Object key) {
+                return key instanceof Integer ? AccountTable.this.get((Integer) key) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) { return get(key) != null; }
+
+            @Override
+            public int size() { return size; }
+
+            @Override
+            public void forEach(BiConsumer<? super Integer, ? super Account> action) {
+                AccountTable.this.forEach(a -> action.accept(a.getAccountNumber(), a));
+            }
+
+            @Override
+            public Set<Entry<Integer, Account>> entrySet() {
+                return new AbstractSet<Entry<Integer, Account>>() {
+                    @Override
+                    public int size() { return size; }
+
+                    @Override
+                    public Iterator<Entry<Integer, Account>> iterator() {
+                        Iterator<Account> it = AccountTable.this.values().iterator();
+                        return new Iterator<Entry<Integer, Account>>() {
+                            public boolean hasNext() { return it.hasNext(); }
+                            public Entry<Integer, Account> next() {
+                                Account a = it.next();
+                                return new SimpleImmutableEntry<>(a.getAccountNumber(), a);
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AtomicReferenceArray<Account>[] newDirectory(int n) {
+        return (AtomicReferenceArray<Account>[]) new AtomicReferenceArray<?>[n];
+    }
+}
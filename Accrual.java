@@ -0,0 +1,173 @@
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+// ---------------- Accrual class ----------------
+// End-of-day interest credit and maintenance-fee debit for every account.
+//
+// Postings are computed from one read snapshot, so every account is charged on
+// its balance as of the same cut, while normal traffic carries on. Accounts are
+// split by Bank lock stripe; a fork-join task per partition works out its
+// postings and commits them as one journal batch under that single stripe lock,
+// so partitions post in parallel without contending with each other. Interest
+// is a DEPOSIT and a fee a WITHDRAW, so they show up in statements, exports
+// and the audit log like any other posting.
+//
+// Each partition's batch carries the idempotency key accrual:<date>:<partition>,
+// and the Bank keeps the newest date each partition has posted, in its snapshot
+// and journal, for good. Running the same date again, e.g. after a crash part
+// way through, skips the partitions that already posted it, however long after;
+// a date earlier than one already posted fails for that partition.
+final class Accrual {
+    // Rates and fees for one run
+    static final class Policy {
+        final int annualRateBps;   // interest per year in basis points, 0 for none
+        final int daysInYear;
+        final long feeBelow;       // balances under this are charged the fee (minor units)
+        final long fee;            // minor units, 0 for none
+
+        Policy(int annualRateBps, int daysInYear, long feeBelow, long fee) {
+            if (annualRateBps < 0 || daysInYear < 1 || feeBelow < 0 || fee < 0) {
+                throw new IllegalArgumentException("Invalid accrual policy");
+            }
+            this.annualRateBps = annualRateBps;
+            this.daysInYear = daysInYear;
+            this.feeBelow = feeBelow;
+            this.fee = fee;
+        }
+
+        // One day's interest on balance, rounded down to the minor unit
+        long dailyInterest(long balance) {
+            if (annualRateBps == 0 || balance <= 0) return 0;
+            return BigDecimal.valueOf(balance).multiply(BigDecimal.valueOf(annualRateBps))
+                    .divide(BigDecimal.valueOf(10_000L * daysInYear), 0, RoundingMode.DOWN)
+                    .longValueExact();
+        }
+    }
+
+    // Totals for one run; partitions that fail are counted and can be retried by running again
+    static final class Report {
+        final LongAdder posted = new LongAdder();
+        final LongAdder skipped = new LongAdder(); // already posted by an earlier run of the same date
+        final LongAdder failed = new LongAdder();
+        final LongAdder interestPostings = new LongAdder();
+        final LongAdder interestTotal = new LongAdder();
+        final LongAdder feePostings = new LongAdder();
+        final LongAdder feeTotal = new LongAdder();
+
+        @Override
+        public String toString() {
+            return String.format("partitions posted=%d skipped=%d failed=%d; interest %d postings %s; fees %d postings %s",
+                    posted.sum(), skipped.sum(), failed.sum(),
+                    interestPostings.sum(), Money.format(interestTotal.sum()),
+                    feePostings.sum(), Money.format(feeTotal.sum()));
+        }
+    }
+
+    private Accrual() { }
+
+    public static Report run(Bank bank, LocalDate businessDate, Policy policy) {
+        Report report = new Report();
+        List<List<ReadSnapshot.AccountView>> partitions = new ArrayList<>(Bank.ACCRUAL_PARTITIONS);
+        for (int i = 0; i < Bank.ACCRUAL_PARTITIONS; i++) partitions.add(new ArrayList<>());
+        try (ReadSnapshot snap = bank.snapshot()) {
+            snap.forEach(v -> partitions.get(Bank.accrualPartition(v.getAccountNumber())).add(v));
+        }
+        ForkJoinPool.commonPool().invoke(new PartitionTask(bank, businessDate, policy, partitions, report,
+                0, partitions.size()));
+        return report;
+    }
+
+    // Splits the partition range in halves down to single partitions
+    private static final class PartitionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Bank bank;
+        private final LocalDate date;
+        private final Policy policy;
+        private final List<List<ReadSnapshot.AccountView>> partitions;
+        private final Report report;
+        private final int lo, hi;
+
+        PartitionTask(Bank bank, LocalDate date, Policy policy, List<List<ReadSnapshot.AccountView>> partitions,
+                      Report report, int lo, int hi) {
+            this.bank = bank;
+            this.date = date;
+            this.policy = policy;
+            this.partitions = partitions;
+            this.report = report;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new PartitionTask(bank, date, policy, partitions, report, lo, mid),
+                          new PartitionTask(bank, date, policy, partitions, report, mid, hi));
+                return;
+            }
+            List<Journal.Entry> postings = new ArrayList<>();
+            for (ReadSnapshot.AccountView v : partitions.get(lo)) {
+                long interest = policy.dailyInterest(v.getBalance());
+                if (interest > 0) postings.add(Journal.Entry.draft(Journal.Op.DEPOSIT, v.getAccountNumber(), 0, interest));
+                if (policy.fee > 0 && v.getBalance() < policy.feeBelow) {
+                    postings.add(Journal.Entry.draft(Journal.Op.WITHDRAW, v.getAccountNumber(), 0, policy.fee));
+                }
+            }
+            if (postings.isEmpty()) return;
+            try {
+                List<Journal.Entry> applied = bank.postAccruals(date, lo, postings);
+                if (applied == null) {
+                    report.skipped.increment();
+                    return;
+                }
+                report.posted.increment();
+                for (Journal.Entry e : applied) {
+                    if (e.op == Journal.Op.DEPOSIT) {
+                        report.interestPostings.increment();
+                        report.interestTotal.add(e.amount);
+                    } else {
+                        report.feePostings.increment();
+                        report.feeTotal.add(e.amount);
+                    }
+                }
+            } catch (BankException e) {
+                report.failed.increment();
+                System.err.println("Accrual partition " + lo + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // java Accrual <dataDir> <yyyy-MM-dd> <annualRateBps> [feeBelow fee]
+    public static void main(String[] args) throws IOException, BankException {
+        if (args.length != 3 && args.length != 5) {
+            System.err.println("usage: Accrual <dataDir> <yyyy-MM-dd> <annualRateBps> [feeBelow fee]");
+            System.exit(2);
+        }
+        LocalDate date = LocalDate.parse(args[1]);
+        Policy policy = new Policy(Integer.parseInt(args[2]), date.lengthOfYear(),
+                args.length == 5 ? Money.parse(args[3]) : 0, args.length == 5 ? Money.parse(args[4]) : 0);
+        Bank bank = new Bank("OpenSim Bank", new File(args[0]));
+        bank.loadState();
+        Report r;
+        try {
+            bank.enableGroupCommit(Bank.ACCRUAL_PARTITIONS, 2);
+            long started = System.nanoTime();
+            r = run(bank, date, policy);
+            bank.saveState();
+            System.out.printf("Accrual for %s in %d ms: %s%n", date, (System.nanoTime() - started) / 1_000_000L, r);
+        } finally {
+            bank.close();
+        }
+        // a rerun for the same date posts only the failed partitions
+        if (r.failed.sum() > 0) System.exit(1);
+    }
+}
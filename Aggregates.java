@@ -0,0 +1,308 @@
+import java.time.LocalDate;
+import java.util.*;
+
+// ---------------- Aggregates class ----------------
+// Bank-wide figures for admin reporting, kept current as operations commit
+// instead of being recomputed by scanning every account and record:
+//   - total balance held and number of accounts
+//   - accounts whose balance is below a near-minimum threshold
+//   - per-day count and amount of each Transaction.Type
+//   - the largest balances, in order
+//
+// Fed from the journal's append listener, in sequence order, right after the
+// read-snapshot versions; the members of a journal batch are staged and
+// counted together, so a query never sees part of a batch. Balances are read
+// from each account's newest committed version, so reserved-but-unjournaled
+// debits never show up here either.
+//
+// The largest balances are held in a set of at most TOP_CAPACITY accounts,
+// not an index over every account. watermark bounds the balance of every
+// account outside the set, so the members at or above it are known to be in
+// the right order. When members drop below it and a query needs more than
+// remain, the caller rebuilds the set with one pass over the accounts.
+//
+// Daily rollups are written into the snapshot and replayed from the journal
+// on load; the account-level figures are recomputed from the loaded balances.
+final class Aggregates {
+    static final int TOP_CAPACITY = 1024;
+    private static final Transaction.Type[] TYPES = Transaction.Type.values();
+
+    private final long nearMinimumBelow;
+
+    // all guarded by this
+    private long seq;
+    private long totalBalance;
+    private int accountCount;
+    private int nearMinimum;
+    private final Map<Long, long[]> days = new HashMap<>(); // epoch day -> count, amount per type ordinal
+    private final TreeSet<Ranked> top = new TreeSet<>();
+    private final Map<Integer, Ranked> topIndex = new HashMap<>();
+    private long watermark = Long.MIN_VALUE; // no account outside top has a larger balance
+
+    // Only touched from the append listener, which runs under the journal lock
+    private final List<Journal.Entry> pending = new ArrayList<>();
+    private int batchRemaining;
+    private final Map<Integer, Long> deltas = new HashMap<>();
+    private final Map<Integer, Long> created = new HashMap<>();
+
+    // Day boundaries of the last timestamp bucketed, to skip the zone lookup
+    private long dayStart = 1, dayEnd = 0, dayCached;
+
+    Aggregates(long nearMinimumBelow) {
+        this.nearMinimumBelow = nearMinimumBelow;
+    }
+
+    // Bank-wide figures as of one journal sequence
+    static final class Totals {
+        final long seq;
+        final int accounts;
+        final long totalBalance;
+        final int nearMinimum;
+        final long nearMinimumBelow;
+
+        Totals(long seq, int accounts, long totalBalance, int nearMinimum, long nearMinimumBelow) {
+            this.seq = seq;
+            this.accounts = accounts;
+            this.totalBalance = totalBalance;
+            this.nearMinimum = nearMinimum;
+            this.nearMinimumBelow = nearMinimumBelow;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d accounts holding %s; %d below %s", accounts, Money.format(totalBalance),
+                    nearMinimum, Money.format(nearMinimumBelow));
+        }
+    }
+
+    // One day's history records by type; transfers show up once on each side
+    static final class DayTotals {
+        final LocalDate date;
+        private final long[] counts;
+
+        DayTotals(LocalDate date, long[] counts) {
+            this.date = date;
+            this.counts = counts;
+        }
+
+        public long count(Transaction.Type type) { return counts[type.ordinal() * 2]; }
+        public long amount(Transaction.Type type) { return counts[type.ordinal() * 2 + 1]; }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(date.toString());
+            for (Transaction.Type t : TYPES) {
+                sb.append(String.format(" %s %d/%s", t, count(t), Money.format(amount(t))));
+            }
+            return sb.toString();
+        }
+    }
+
+    // An account's position in the top set
+    private static final class Ranked implements Comparable<Ranked> {
+        final int account;
+        final long balance;
+
+        Ranked(int account, long balance) {
+            this.account = account;
+            this.balance = balance;
+        }
+
+        @Override
+        public int compareTo(Ranked o) {
+            int c = Long.compare(o.balance, balance);
+            return c != 0 ? c : Integer.compare(account, o.account);
+        }
+    }
+
+    // ---------------- Updates ----------------
+
+    // Called from the journal's append listener after ReadSnapshot.Registry.publish,
+    // so each account's newest committed version already includes e
+    void publish(Journal.Entry e, AccountTable accounts) {
+        if (e.op == Journal.Op.BATCH) {
+            batchRemaining = e.account;
+            return;
+        }
+        pending.add(e);
+        if (batchRemaining > 0 && --batchRemaining > 0) return;
+        for (Journal.Entry p : pending) {
+            switch (p.op) {
+                case CREATE:
+                    created.put(p.account, p.amount);
+                    break;
+                case DEPOSIT:
+                    deltas.merge(p.account, p.amount, Long::sum);
+                    break;
+                case WITHDRAW:
+                    deltas.merge(p.account, -p.amount, Long::sum);
+                    break;
+                case TRANSFER:
+                    deltas.merge(p.account, -p.amount, Long::sum);
+                    deltas.merge(p.counterparty, p.amount, Long::sum);
+                    break;
+                case PREPARE_OUT:
+                    deltas.merge(p.account, -p.amount, Long::sum);
+                    break;
+                case COMMIT_IN:
+                case ABORT_OUT:
+                    deltas.merge(p.account, p.amount, Long::sum);
+                    break;
+                default:
+                    break;
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<Integer, Long> c : created.entrySet()) {
+                // new accounts are only added to the table once the append returns
+                long balance = c.getValue() + deltas.getOrDefault(c.getKey(), 0L);
+                deltas.remove(c.getKey());
+                accountCount++;
+                totalBalance += balance;
+                if (balance < nearMinimumBelow) nearMinimum++;
+                if (balance > watermark) insert(c.getKey(), balance);
+            }
+            for (Map.Entry<Integer, Long> d : deltas.entrySet()) {
+                long now = accounts.get(d.getKey()).committedAt(Long.MAX_VALUE).balance;
+                changed(d.getKey(), now - d.getValue(), now);
+            }
+            for (Journal.Entry p : pending) roll(p);
+            seq = e.seq;
+        }
+        pending.clear();
+        deltas.clear();
+        created.clear();
+    }
+
+    private void changed(int account, long before, long after) {
+        totalBalance += after - before;
+        if (before < nearMinimumBelow) nearMinimum--;
+        if (after < nearMinimumBelow) nearMinimum++;
+        Ranked r = topIndex.remove(account);
+        if (r != null) top.remove(r);
+        if (r != null || after > watermark) insert(account, after);
+    }
+
+    private void insert(int account, long balance) {
+        Ranked r = new Ranked(account, balance);
+        top.add(r);
+        topIndex.put(account, r);
+        if (top.size() > TOP_CAPACITY) {
+            Ranked out = top.pollLast();
+            topIndex.remove(out.account);
+            watermark = Math.max(watermark, out.balance);
+        }
+    }
+
+    // Adds one entry's history records to its day; also used for journal replay
+    synchronized void roll(Journal.Entry e) {
+        switch (e.op) {
+            case CREATE:
+            case DEPOSIT:
+                roll(e.timestamp, Transaction.Type.DEPOSIT, e.amount);
+                break;
+            case WITHDRAW:
+                roll(e.timestamp, Transaction.Type.WITHDRAW, e.amount);
+                break;
+            case TRANSFER:
+                roll(e.timestamp, Transaction.Type.TRANSFER_OUT, e.amount);
+                roll(e.timestamp, Transaction.Type.TRANSFER_IN, e.amount);
+                break;
+            // each shard of a cross-shard transfer records its own side when it commits
+            case COMMIT_OUT:
+                roll(e.timestamp, Transaction.Type.TRANSFER_OUT, e.amount);
+                break;
+            case COMMIT_IN:
+                roll(e.timestamp, Transaction.Type.TRANSFER_IN, e.amount);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void roll(long timestamp, Transaction.Type type, long amount) {
+        long[] day = days.computeIfAbsent(epochDay(timestamp), k -> new long[TYPES.length * 2]);
+        day[type.ordinal() * 2]++;
+        day[type.ordinal() * 2 + 1] += amount;
+    }
+
+    private long epochDay(long timestamp) {
+        if (timestamp < dayStart || timestamp >= dayEnd) {
+            LocalDate d = Transaction.fromEpochMilli(timestamp).toLocalDate();
+            dayCached = d.toEpochDay();
+            dayStart = Transaction.toEpochMilli(d.atStartOfDay());
+            dayEnd = Transaction.toEpochMilli(d.plusDays(1).atStartOfDay());
+        }
+        return dayCached;
+    }
+
+    // ---------------- Loading ----------------
+
+    // Before a load: drops everything, then takes the snapshot's rollups if it had any
+    synchronized void clear(Map<Long, long[]> savedDays) {
+        days.clear();
+        if (savedDays != null) days.putAll(savedDays);
+        pending.clear();
+        batchRemaining = 0;
+    }
+
+    // Recounts every day from the history store, for snapshots written before rollups were kept
+    synchronized void rebuildDays(TransactionStore store) {
+        days.clear();
+        for (long i = 0, n = store.size(); i < n; i++) roll(store.timestamp(i), store.type(i), store.amount(i));
+    }
+
+    // After a load, or to refill the top set: recomputes the account-level figures from
+    // each account's newest committed balance. The caller keeps writers out.
+    synchronized void reset(long seq, AccountTable accounts) {
+        this.seq = seq;
+        totalBalance = 0;
+        accountCount = 0;
+        nearMinimum = 0;
+        top.clear();
+        topIndex.clear();
+        watermark = Long.MIN_VALUE;
+        accounts.forEach(a -> {
+            long balance = a.committedAt(Long.MAX_VALUE).balance;
+            accountCount++;
+            totalBalance += balance;
+            if (balance < nearMinimumBelow) nearMinimum++;
+            if (balance > watermark) insert(a.getAccountNumber(), balance);
+        });
+    }
+
+    // ---------------- Queries ----------------
+
+    synchronized Totals totals() {
+        return new Totals(seq, accountCount, totalBalance, nearMinimum, nearMinimumBelow);
+    }
+
+    synchronized DayTotals day(LocalDate date) {
+        long[] day = days.get(date.toEpochDay());
+        return new DayTotals(date, day == null ? new long[TYPES.length * 2] : day.clone());
+    }
+
+    // Copies of every day's rollup, for writing into a snapshot
+    synchronized Map<Long, long[]> days() {
+        Map<Long, long[]> copy = new TreeMap<>();
+        for (Map.Entry<Long, long[]> d : days.entrySet()) copy.put(d.getKey(), d.getValue().clone());
+        return copy;
+    }
+
+    // The n largest balances, largest first (ties broken by account number), or null if members
+    // have fallen below the watermark and fewer than n can be vouched for; then call
+    // reset() and ask again. n is capped at TOP_CAPACITY.
+    synchronized List<ReadSnapshot.AccountView> top(int n, AccountTable accounts) {
+        n = Math.min(n, TOP_CAPACITY);
+        List<ReadSnapshot.AccountView> list = new ArrayList<>(Math.min(n, top.size()));
+        for (Ranked r : top) {
+            if (list.size() == n) break;
+            if (r.balance < watermark) return null;
+            Account a = accounts.get(r.account);
+            list.add(new ReadSnapshot.AccountView(r.account, a == null ? null : a.getHolderName(), r.balance));
+        }
+        // a short list is only complete if no account was ever pushed out of the set
+        if (list.size() < n && watermark != Long.MIN_VALUE) return null;
+        return list;
+    }
+}
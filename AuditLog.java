@@ -0,0 +1,463 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// ---------------- AuditLog class ----------------
+// Asynchronous writer for audit.log. Committed journal entries are dropped into
+// a bounded ring buffer; a single background thread formats them and appends
+// whole batches to the file with one channel write each. Producers never touch
+// the file, so the only cost on the commit path is claiming a slot.
+//
+// Entries are published from the journal's append listener, i.e. in journal
+// sequence order, and the writer drains slots strictly in claim order, so lines
+// appear in the order operations committed.
+//
+// The file is segmented. The writer only ever appends to the active file
+// (audit.log); once it passes maxBytes or its first line is maxAgeMillis old it
+// is sealed as audit-NNNNNN.log, recorded in audit.idx, and a fresh active file
+// is started. A background thread then gzips each sealed segment. audit.idx has
+// one line per sealed segment, "segment start length firstTimestamp lastTimestamp",
+// where start and length are uncompressed byte offsets into the trail as a
+// whole, so an offset keeps its meaning however the trail has been split up.
+class AuditLog implements Closeable {
+    // What publish() does when the writer has fallen a full ring behind
+    public enum Overflow {
+        BLOCK, // wait for a free slot; no event is lost but commits slow to disk speed
+        DROP   // discard the event and count it; the writer records how many were lost
+    }
+
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+    static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+    static final long DEFAULT_MAX_SEGMENT_AGE_MILLIS = 24L * 60 * 60 * 1000;
+
+    // One stretch of the trail: a sealed segment, or the active file as of segments()
+    static final class Segment {
+        final int number;
+        final long start;  // offset of its first byte in the whole trail
+        final long length; // uncompressed bytes
+        final String firstTimestamp, lastTimestamp; // as logged; null if unknown or still active
+
+        Segment(int number, long start, long length, String firstTimestamp, String lastTimestamp) {
+            this.number = number;
+            this.start = start;
+            this.length = length;
+            this.firstTimestamp = firstTimestamp;
+            this.lastTimestamp = lastTimestamp;
+        }
+
+        @Override
+        public String toString() {
+            return number + " " + start + " " + length + " "
+                    + (firstTimestamp == null ? "-" : firstTimestamp) + " " + (lastTimestamp == null ? "-" : lastTimestamp);
+        }
+    }
+
+    private final File file;
+    private final File indexFile;
+    private final String segmentPrefix;
+    private FileChannel channel; // replaced on rotation, under this
+    private final List<Segment> sealed = new ArrayList<>(); // guarded by this
+    private int nextSegment = 1;    // number the active file gets when sealed, guarded by this
+    private long activeStart;       // trail offset of the active file's first byte, guarded by this
+    private long activeBytes;       // writer thread only
+    private long activeSince;       // epoch millis of the active file's first line, 0 while empty
+    private volatile long maxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+    private volatile long maxSegmentAgeMillis = DEFAULT_MAX_SEGMENT_AGE_MILLIS;
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "audit-compress");
+        t.setDaemon(true);
+        return t;
+    });
+    private final int mask;
+    private final Journal.Entry[] slots;
+    private final AtomicLongArray published; // slot i holds claim sequence + 1 once filled
+    private final AtomicLong head = new AtomicLong(); // next sequence to claim
+    private volatile long tail; // next sequence the writer will read
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Overflow overflow;
+    private volatile boolean closed;
+    private final Thread writer;
+
+    // writer-thread state
+    private final StringBuilder line = new StringBuilder(256);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+    private long droppedReported;
+    private int buffered;    // entries formatted into out since it was last written out
+    private boolean failing; // the last write failed; the next failure is not reported again
+
+    public AuditLog(File file, int capacity, Overflow overflow) throws IOException {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        this.file = file;
+        String base = file.getName().endsWith(".log") ? file.getName().substring(0, file.getName().length() - 4) : file.getName();
+        this.indexFile = new File(file.getParentFile(), base + ".idx");
+        this.segmentPrefix = base + "-";
+        loadIndex();
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.activeBytes = channel.size();
+        this.activeSince = activeBytes == 0 ? 0 : toEpochMillis(lineTimestamp(file, false));
+        this.mask = capacity - 1;
+        this.slots = new Journal.Entry[capacity];
+        this.published = new AtomicLongArray(capacity);
+        this.overflow = overflow;
+        this.writer = new Thread(this::writeLoop, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void setOverflow(Overflow overflow) { this.overflow = overflow; }
+
+    // The active file is sealed once it holds maxBytes or its first line is maxAgeMillis old
+    public void setRotation(long maxBytes, long maxAgeMillis) {
+        if (maxBytes < 1 || maxAgeMillis < 1) throw new IllegalArgumentException("rotation limits must be positive");
+        this.maxSegmentBytes = maxBytes;
+        this.maxSegmentAgeMillis = maxAgeMillis;
+        LockSupport.unpark(writer);
+    }
+
+    // Sealed segments followed by the active file, in trail order. Call flush() first
+    // to include everything published so far.
+    public synchronized List<Segment> segments() throws IOException {
+        List<Segment> list = new ArrayList<>(sealed);
+        list.add(new Segment(nextSegment, activeStart, channel.size(), null, null));
+        return list;
+    }
+
+    // Opens a segment from segments() for reading from its start. Works even if the
+    // segment has since been sealed or compressed.
+    public InputStream open(Segment s) throws IOException {
+        synchronized (this) {
+            if (s.number == nextSegment) return new FileInputStream(file);
+        }
+        File log = segmentFile(s.number, false);
+        try {
+            return new FileInputStream(log);
+        } catch (FileNotFoundException compressedMeanwhile) {
+            return new GZIPInputStream(new FileInputStream(segmentFile(s.number, true)), 64 * 1024);
+        }
+    }
+
+    public long droppedCount() { return dropped.get(); }
+
+    // Queues one committed entry. Never does I/O; under BLOCK it may wait for ring space.
+    public void publish(Journal.Entry e) {
+        long seq;
+        while (true) {
+            seq = head.get();
+            if (seq - tail > mask) {
+                if (closed) return;
+                // a writer that has died will never make room
+                if (overflow == Overflow.DROP || !writer.isAlive()) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(this, 50_000L);
+                continue;
+            }
+            if (head.compareAndSet(seq, seq + 1)) break;
+        }
+        int idx = (int) (seq & mask);
+        slots[idx] = e;
+        published.set(idx, seq + 1);
+        if (seq == tail) LockSupport.unpark(writer);
+    }
+
+    // Blocks until everything published before this call has been handed to the OS
+    public void flush() {
+        long target = head.get();
+        while (tail < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(this, 100_000L);
+        }
+    }
+
+    // Drains whatever is queued and closes the file; safe to call from a shutdown hook
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compressor.shutdown();
+        try {
+            compressor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            channel.close();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long t = tail;
+            int n = 0;
+            try {
+                while (n < MAX_BATCH) {
+                    long seq = t + n;
+                    int idx = (int) (seq & mask);
+                    if (published.get(idx) != seq + 1) break;
+                    try {
+                        format(slots[idx]);
+                    } catch (IOException | RuntimeException ex) {
+                        lost(ex, 1);
+                    }
+                    // handled either way; the slot is only reused once tail moves past it
+                    slots[idx] = null;
+                    n++;
+                }
+                long lost = dropped.get();
+                if (lost > droppedReported) formatOverflow(lost - droppedReported);
+                drain();
+                droppedReported = lost; // only once the line is written; a failure adds to the count
+                if (activeBytes >= maxSegmentBytes
+                        || (activeSince != 0 && System.currentTimeMillis() - activeSince >= maxSegmentAgeMillis)) {
+                    rotate();
+                }
+            } catch (IOException | RuntimeException ex) {
+                lost(ex, 0);
+            }
+            if (n > 0) {
+                tail = t + n;
+                continue;
+            }
+            if (closed && head.get() == tail) return;
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+    }
+
+    // A failed write: what was waiting in out is gone, along with the entry being
+    // formatted, if any. They are counted as dropped, so the next AUDIT_OVERFLOW
+    // line records them.
+    private void lost(Exception ex, int current) {
+        if (!failing) System.err.println("Failed to write audit: " + ex);
+        failing = true;
+        out.clear();
+        dropped.addAndGet(buffered + current);
+        buffered = 0;
+    }
+
+    private void format(Journal.Entry e) throws IOException {
+        if (activeSince == 0) activeSince = e.timestamp;
+        line.setLength(0);
+        DateTimeFormatter.ISO_LOCAL_DATE_TIME.formatTo(Transaction.fromEpochMilli(e.timestamp), line);
+        line.append(" | ");
+        switch (e.op) {
+            case CREATE:
+                line.append("CREATE_ACCOUNT | Acc:").append(e.account)
+                    .append(" Name:").append(e.holderName)
+                    .append(" Init:").append(Money.format(e.amount));
+                break;
+            case DEPOSIT:
+            case WITHDRAW:
+                line.append(e.op).append(" | Acc:").append(e.account)
+                    .append(" Amount:").append(Money.format(e.amount));
+                break;
+            case TRANSFER:
+                line.append("TRANSFER | From:").append(e.account)
+                    .append(" To:").append(e.counterparty)
+                    .append(" Amount:").append(Money.format(e.amount));
+                break;
+            case BATCH:
+                // header for the lines of one Bank.applyBatch call, which follow it
+                line.append("BATCH | Ops:").append(e.account);
+                break;
+            default:
+                // this shard's side of a cross-shard transfer
+                line.append(e.op).append(" | Tx:").append(e.idempotencyKey)
+                    .append(" Acc:").append(e.account)
+                    .append(" Peer:").append(e.counterparty)
+                    .append(" Amount:").append(Money.format(e.amount));
+                break;
+        }
+        line.append(System.lineSeparator());
+        encode();
+        buffered++;
+    }
+
+    private void formatOverflow(long lost) throws IOException {
+        line.setLength(0);
+        DateTimeFormatter.ISO_LOCAL_DATE_TIME.formatTo(LocalDateTime.now(), line);
+        line.append(" | AUDIT_OVERFLOW | Dropped:").append(lost).append(System.lineSeparator());
+        encode();
+    }
+
+    private void encode() throws IOException {
+        CharBuffer cb = CharBuffer.wrap(line);
+        encoder.reset();
+        while (true) {
+            CoderResult r = encoder.encode(cb, out, true);
+            if (!r.isOverflow()) break;
+            drain();
+        }
+        while (encoder.flush(out).isOverflow()) drain();
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        if (out.hasRemaining()) {
+            activeBytes += out.remaining();
+            while (out.hasRemaining()) channel.write(out);
+            failing = false;
+        }
+        out.clear();
+        buffered = 0;
+    }
+
+    // ---------------- Segments ----------------
+    // Writer thread only. Seals the active file, records it in the index and starts
+    // a new one; the rename and index line are forced before anything else is written.
+    private void rotate() throws IOException {
+        if (activeBytes == 0) return;
+        Segment seg;
+        synchronized (this) {
+            channel.force(true);
+            seg = new Segment(nextSegment, activeStart, activeBytes,
+                    lineTimestamp(file, false), lineTimestamp(file, true));
+            channel.close();
+            try {
+                Files.move(file.toPath(), segmentFile(seg.number, false).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                // a fresh active file, or the same one again if the rename failed
+                channel = FileChannel.open(file.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            sealed.add(seg);
+            nextSegment++;
+            activeStart += activeBytes;
+            activeBytes = 0;
+            activeSince = 0;
+        }
+        // if this fails the line is rebuilt from the sealed file on the next open, which
+        // is also when it gets compressed; only indexed segments are ever compressed
+        appendIndex(seg);
+        compressor.execute(() -> compress(seg.number));
+    }
+
+    // Reads audit.idx, then indexes any sealed file a crash left out of it and
+    // queues compression for sealed files that are not compressed yet
+    private void loadIndex() throws IOException {
+        if (indexFile.exists()) {
+            for (String l : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] f = l.trim().split(" ");
+                if (f.length != 5) continue; // torn last line
+                sealed.add(new Segment(Integer.parseInt(f[0]), Long.parseLong(f[1]), Long.parseLong(f[2]),
+                        "-".equals(f[3]) ? null : f[3], "-".equals(f[4]) ? null : f[4]));
+            }
+        }
+        if (!sealed.isEmpty()) {
+            Segment last = sealed.get(sealed.size() - 1);
+            nextSegment = last.number + 1;
+            activeStart = last.start + last.length;
+        }
+        // sealed by a rename whose index line never made it to disk
+        File log;
+        while ((log = segmentFile(nextSegment, false)).exists()) {
+            Segment seg = new Segment(nextSegment, activeStart, log.length(),
+                    lineTimestamp(log, false), lineTimestamp(log, true));
+            appendIndex(seg);
+            sealed.add(seg);
+            nextSegment++;
+            activeStart += seg.length;
+        }
+        for (Segment seg : sealed) {
+            if (segmentFile(seg.number, false).exists()) {
+                int n = seg.number;
+                compressor.execute(() -> compress(n));
+            }
+        }
+    }
+
+    private void appendIndex(Segment seg) throws IOException {
+        try (FileChannel ch = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer b = ByteBuffer.wrap((seg + "\n").getBytes(StandardCharsets.UTF_8));
+            while (b.hasRemaining()) ch.write(b);
+            ch.force(true);
+        }
+    }
+
+    // gzips a sealed segment next to itself, then removes the plain copy. Readers
+    // fall back to the .gz, which is complete before the plain file goes.
+    private void compress(int number) {
+        File log = segmentFile(number, false), gz = segmentFile(number, true);
+        File tmp = new File(gz.getPath() + ".tmp");
+        try {
+            try (InputStream in = new FileInputStream(log);
+                 FileOutputStream fos = new FileOutputStream(tmp);
+                 GZIPOutputStream zip = new GZIPOutputStream(fos, 64 * 1024)) {
+                in.transferTo(zip);
+                zip.finish();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(log.toPath());
+        } catch (IOException e) {
+            System.err.println("Failed to compress audit segment " + log + ": " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    private File segmentFile(int number, boolean compressed) {
+        return new File(file.getParentFile(), String.format("%s%06d.log%s", segmentPrefix, number, compressed ? ".gz" : ""));
+    }
+
+    // Timestamp of the first or last line of an uncompressed audit file, null if it has none
+    private static String lineTimestamp(File f, boolean last) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size == 0) return null;
+            int n = (int) Math.min(size, 4096);
+            ByteBuffer b = ByteBuffer.allocate(n);
+            long pos = last ? size - n : 0;
+            while (b.hasRemaining() && ch.read(b, pos + b.position()) > 0) { }
+            String text = new String(b.array(), 0, b.position(), StandardCharsets.UTF_8);
+            String lineText;
+            if (last) {
+                String trimmed = text.stripTrailing();
+                lineText = trimmed.substring(trimmed.lastIndexOf('\n') + 1);
+            } else {
+                int nl = text.indexOf('\n');
+                lineText = nl < 0 ? text : text.substring(0, nl);
+            }
+            int sep = lineText.indexOf(' ');
+            return sep > 0 ? lineText.substring(0, sep) : null;
+        }
+    }
+
+    private static long toEpochMillis(String timestamp) {
+        if (timestamp == null) return System.currentTimeMillis();
+        try {
+            return Transaction.toEpochMilli(LocalDateTime.parse(timestamp));
+        } catch (DateTimeParseException e) {
+            return System.currentTimeMillis();
+        }
+    }
+}
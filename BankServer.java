@@ -0,0 +1,323 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ---------------- BankServer class ----------------
+// Line-oriented TCP front end for Bank, bound to the loopback interface only.
+// One request per line, fields separated by TAB, the first field being a
+// client-chosen request id that is echoed back:
+//
+//   <id> CREATE    <name> <governmentId> <amount>   -> <id> OK <accountNumber>
+//   <id> DEPOSIT   <account> <amount>               -> <id> OK
+//   <id> WITHDRAW  <account> <amount>               -> <id> OK
+//   <id> TRANSFER  <from> <to> <amount>             -> <id> OK
+//   <id> BALANCE   <account>                        -> <id> OK <balance> <holderName>
+//   <id> STATEMENT <account> [n]                    -> <id> OK <count> <txn>...
+//
+//   <id> PREPARE_DEBIT  <transferId> <from> <to> <amount>  -> <id> OK
+//   <id> PREPARE_CREDIT <transferId> <to> <from> <amount>  -> <id> OK
+//   <id> COMMIT    <transferId>                      -> <id> OK
+//   <id> ABORT     <transferId>                      -> <id> OK
+//   <id> INDOUBT                                     -> <id> OK <count> <transferId>...
+//
+// where amounts are decimal strings as accepted by Money.parse and each txn is
+// "timestamp,TYPE,amount,counterparty". A failed request gets
+// "<id> ERR <code> <message>" with one of the codes below.
+//
+// CREATE, DEPOSIT, WITHDRAW and TRANSFER take an optional last field
+// "key=<idempotencyKey>". A client that times out can resend the request with
+// the same key, on any connection, and gets the original reply without the
+// operation being applied twice.
+//
+// The last five commands are this bank's side of a ShardedBank transfer
+// between shards, sent by the coordinator when the shard runs in its own
+// process; see Bank.prepareDebit.
+//
+// Clients may pipeline: requests on a connection are handled in order and the
+// replies come back in the same order. Replies are flushed only once no further
+// request is already buffered, so a pipelined burst is answered in one write.
+class BankServer implements Closeable {
+    // Error codes sent in ERR replies
+    static final String NOT_FOUND = "NOT_FOUND";
+    static final String INSUFFICIENT_FUNDS = "INSUFFICIENT_FUNDS";
+    static final String KYC_REJECTED = "KYC_REJECTED";
+    static final String REJECTED = "REJECTED";       // any other BankException
+    static final String BAD_REQUEST = "BAD_REQUEST"; // malformed line, unknown command, bad number
+    static final String INTERNAL = "INTERNAL";
+
+    private static final String SEP = "\t";
+    private static final String KEY_FIELD = "key=";
+    private static final int BACKLOG = 512;
+    private static final int STATEMENT_DEFAULT = 10;
+    private static final int STATEMENT_MAX = 1000;
+
+    private final Bank bank;
+    private final ServerSocket server;
+    private final ExecutorService connections = newConnectionExecutor();
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    // Starts serving immediately; port 0 picks a free port, see getPort()
+    public BankServer(Bank bank, int port) throws IOException {
+        this.bank = bank;
+        this.server = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+        this.acceptor = new Thread(this::acceptLoop, "bank-server-accept");
+        acceptor.start();
+    }
+
+    public int getPort() { return server.getLocalPort(); }
+
+    // Stops accepting, drops open connections and waits briefly for handlers to finish
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (Socket s : open) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+        connections.shutdown();
+        try {
+            connections.awaitTermination(5, TimeUnit.SECONDS);
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // One thread per connection: virtual threads where the runtime has them (Java 21+),
+    // otherwise a cached pool of daemon platform threads. The build targets 17, so
+    // the virtual-thread executor is looked up rather than linked.
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "bank-server-conn-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket s = server.accept();
+                s.setTcpNoDelay(true);
+                open.add(s);
+                connections.execute(() -> serve(s));
+            } catch (IOException e) {
+                if (!closed) System.err.println("Failed to accept connection: " + e.getMessage());
+            } catch (RejectedExecutionException e) {
+                return; // closing
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try (Socket sock = s;
+             BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8))) {
+            StringBuilder reply = new StringBuilder(128);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                reply.setLength(0);
+                handle(line, reply);
+                out.append(reply).append('\n');
+                if (!in.ready()) out.flush();
+            }
+            out.flush();
+        } catch (SocketException e) {
+            // peer went away or the server is closing
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+        } finally {
+            open.remove(s);
+        }
+    }
+
+    // Executes one request line and writes its reply (without the newline) into reply
+    private void handle(String line, StringBuilder reply) {
+        String[] f = line.split(SEP, -1);
+        reply.append(f[0]).append(SEP);
+        String key = null;
+        if (f.length > 2 && f[f.length - 1].startsWith(KEY_FIELD)) {
+            key = f[f.length - 1].substring(KEY_FIELD.length());
+            f = Arrays.copyOf(f, f.length - 1);
+        }
+        try {
+            if (f.length < 2) throw new BadRequest("Missing command");
+            switch (f[1]) {
+                case "CREATE": {
+                    arity(f, 5);
+                    Account acc = bank.createAccount(f[2], f[3], amount(f[4]), key);
+                    ok(reply).append(SEP).append(acc.getAccountNumber());
+                    break;
+                }
+                case "DEPOSIT":
+                    arity(f, 4);
+                    bank.deposit(account(f[2]), amount(f[3]), key);
+                    ok(reply);
+                    break;
+                case "WITHDRAW":
+                    arity(f, 4);
+                    bank.withdraw(account(f[2]), amount(f[3]), key);
+                    ok(reply);
+                    break;
+                case "TRANSFER":
+                    arity(f, 5);
+                    bank.transfer(account(f[2]), account(f[3]), amount(f[4]), key);
+                    ok(reply);
+                    break;
+                case "BALANCE": {
+                    arity(f, 3);
+                    int acc = account(f[2]);
+                    long bal = bank.getBalance(acc);
+                    ok(reply).append(SEP).append(Money.format(bal)).append(SEP).append(clean(bank.getName(acc)));
+                    break;
+                }
+                case "STATEMENT": {
+                    if (f.length != 3 && f.length != 4) throw new BadRequest("STATEMENT takes 1 or 2 arguments");
+                    int n = f.length == 4 ? number(f[3]) : STATEMENT_DEFAULT;
+                    if (n < 1 || n > STATEMENT_MAX) throw new BadRequest("Statement length must be 1.." + STATEMENT_MAX);
+                    List<Transaction> txns = bank.getMiniStatement(account(f[2]), n);
+                    ok(reply).append(SEP).append(txns.size());
+                    for (Transaction t : txns) {
+                        reply.append(SEP);
+                        DateTimeFormatter.ISO_LOCAL_DATE_TIME.formatTo(t.getTimestamp(), reply);
+                        reply.append(',').append(t.getType())
+                             .append(',').append(Money.format(t.getAmount()))
+                             .append(',').append(t.getCounterparty());
+                    }
+                    break;
+                }
+                case "PREPARE_DEBIT":
+                    arity(f, 6);
+                    bank.prepareDebit(f[2], account(f[3]), account(f[4]), amount(f[5]));
+                    ok(reply);
+                    break;
+                case "PREPARE_CREDIT":
+                    arity(f, 6);
+                    bank.prepareCredit(f[2], account(f[3]), account(f[4]), amount(f[5]));
+                    ok(reply);
+                    break;
+                case "COMMIT":
+                    arity(f, 3);
+                    bank.commitPrepared(f[2]);
+                    ok(reply);
+                    break;
+                case "ABORT":
+                    arity(f, 3);
+                    bank.abortPrepared(f[2]);
+                    ok(reply);
+                    break;
+                case "INDOUBT": {
+                    arity(f, 2);
+                    List<String> ids = bank.inDoubt();
+                    ok(reply).append(SEP).append(ids.size());
+                    for (String id : ids) reply.append(SEP).append(id);
+                    break;
+                }
+                default:
+                    throw new BadRequest("Unknown command " + f[1]);
+            }
+        } catch (BadRequest e) {
+            error(reply, BAD_REQUEST, e.getMessage());
+        } catch (BankException e) {
+            error(reply, errorCode(e), e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Request failed: " + e);
+            error(reply, INTERNAL, String.valueOf(e.getMessage()));
+        }
+    }
+
+    static String errorCode(BankException e) {
+        if (e instanceof AccountNotFoundException) return NOT_FOUND;
+        if (e instanceof InsufficientBalanceException) return INSUFFICIENT_FUNDS;
+        if (e instanceof KYCException) return KYC_REJECTED;
+        return REJECTED;
+    }
+
+    private static StringBuilder ok(StringBuilder reply) {
+        return reply.append("OK");
+    }
+
+    private static void error(StringBuilder reply, String code, String message) {
+        reply.append("ERR").append(SEP).append(code).append(SEP).append(clean(message));
+    }
+
+    // Keeps free text from breaking the framing
+    private static String clean(String s) {
+        return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static void arity(String[] f, int n) throws BadRequest {
+        if (f.length != n) throw new BadRequest(f[1] + " takes " + (n - 2) + " arguments");
+    }
+
+    private static int account(String s) throws BadRequest {
+        return number(s);
+    }
+
+    private static int number(String s) throws BadRequest {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            throw new BadRequest("Not a number: " + s);
+        }
+    }
+
+    private static long amount(String s) throws BankException {
+        long minor = Money.parse(s);
+        if (minor <= 0) throw new BankException("Amount must be positive");
+        return minor;
+    }
+
+    // Malformed input; reported as BAD_REQUEST rather than a business rejection
+    private static final class BadRequest extends BankException {
+        private static final long serialVersionUID = 1L;
+
+        BadRequest(String msg) { super(msg); }
+    }
+
+    // Serves the default bank on localhost: java BankServer [port]
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+        Bank bank = new Bank("OpenSim Bank");
+        bank.loadState();
+        bank.enableGroupCommit(256, 2);
+        BankServer srv = new BankServer(bank, port);
+        System.out.println(bank.getName() + " listening on 127.0.0.1:" + srv.getPort()
+                + " (state loaded in " + bank.getLoadTimeMillis() + " ms)");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                srv.close();
+                bank.saveState();
+                bank.close();
+            } catch (IOException e) {
+                System.err.println("Failed to shut down cleanly: " + e.getMessage());
+            }
+        }, "bank-server-shutdown"));
+    }
+}
@@ -1,12 +1,35 @@
 import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import javax.management.ObjectName;
 
 public class BankingManagementSystem {
     public static void main(String[] args) {
         Bank bank = new Bank("OpenSim Bank");
         bank.loadState(); // attempt to load saved accounts and transactions
+        System.out.println("State loaded in " + bank.getLoadTimeMillis() + " ms");
 
         Scanner sc = new Scanner(System.in);
         System.out.println("Welcome to " + bank.getName() + " - Console Banking System");
@@ -75,7 +98,7 @@ public class BankingManagementSystem {
         String govId = sc.nextLine().trim();
         System.out.print("Initial Deposit: ");
         String amtS = sc.nextLine().trim();
-        double initialDeposit = parseAmount(amtS);
+        long initialDeposit = parseAmount(amtS);
 
         Account acc = bank.createAccount(name, govId, initialDeposit);
         System.out.println("Account created. Account No: " + acc.getAccountNumber());
@@ -86,7 +109,7 @@ public class BankingManagementSystem {
         System.out.print("Account No: ");
         int accNo = Integer.parseInt(sc.nextLine().trim());
         System.out.print("Amount: ");
-        double amt = parseAmount(sc.nextLine().trim());
+        long amt = parseAmount(sc.nextLine().trim());
         bank.deposit(accNo, amt);
         System.out.println("Deposit successful.");
     }
@@ -96,7 +119,7 @@ public class BankingManagementSystem {
         System.out.print("Account No: ");
         int accNo = Integer.parseInt(sc.nextLine().trim());
         System.out.print("Amount: ");
-        double amt = parseAmount(sc.nextLine().trim());
+        long amt = parseAmount(sc.nextLine().trim());
         bank.withdraw(accNo, amt);
         System.out.println("Withdrawal successful.");
     }
@@ -108,7 +131,7 @@ public class BankingManagementSystem {
         System.out.print("To Account No: ");
         int to = Integer.parseInt(sc.nextLine().trim());
         System.out.print("Amount: ");
-        double amt = parseAmount(sc.nextLine().trim());
+        long amt = parseAmount(sc.nextLine().trim());
         bank.transfer(from, to, amt);
         System.out.println("Transfer successful.");
     }
@@ -117,9 +140,9 @@ public class BankingManagementSystem {
         System.out.println("\n--- Balance Enquiry ---");
         System.out.print("Account No: ");
         int accNo = Integer.parseInt(sc.nextLine().trim());
-        double bal = bank.getBalance(accNo);
+        long bal = bank.getBalance(accNo);
         System.out.println("Account Holder's Name: " + bank.getName(accNo));
-        System.out.printf("Balance for account no. %d: %.2f\n", accNo, bal);
+        System.out.printf("Balance for account no. %d: %s\n", accNo, Money.format(bal));
     }
 
     private static void statementInteractive(Bank bank, Scanner sc) throws BankException {
@@ -135,17 +158,17 @@ public class BankingManagementSystem {
 
     private static void listAccountsInteractive(Bank bank) {
         System.out.println("\n--- Accounts List ---");
-        bank.listAllAccounts().forEach((k, v) -> System.out.println(v));
+        System.out.println(bank.totals());
+        System.out.println("Today: " + bank.dailyTotals(LocalDate.now()));
+        try (ReadSnapshot snap = bank.snapshot()) {
+            snap.forEach(System.out::println);
+        }
     }
 
-    private static double parseAmount(String s) throws BankException {
-        try {
-            double d = Double.parseDouble(s);
-            if (d <= 0) throw new BankException("Amount must be positive");
-            return d;
-        } catch (NumberFormatException nfe) {
-            throw new BankException("Invalid amount format");
-        }
+    private static long parseAmount(String s) throws BankException {
+        long minor = Money.parse(s);
+        if (minor <= 0) throw new BankException("Amount must be positive");
+        return minor;
     }
 }
 
@@ -153,259 +176,1877 @@ public class BankingManagementSystem {
 class Bank implements Serializable {
     private static final long serialVersionUID = 1L;
     private String name;
-    private Map<Integer, Account> accounts = new HashMap<>();
-    private List<Transaction> transactions = new ArrayList<>();
-    private int nextAccountNumber = 1001;
+    private AccountTable accounts = new AccountTable();
+    private transient volatile TransactionStore store; // full history, off-heap
+    private transient volatile long loadMillis;
+    private final AtomicInteger nextAccountNumber = new AtomicInteger(1001);
+    private transient volatile int lastAccountNumber = Integer.MAX_VALUE; // end of a shard's block
 
     // Constants / config
-    private final double MIN_BALANCE = 500.0; // enforce minimum balance
+    private static final long MIN_BALANCE = 50_000; // enforce minimum balance (minor units, i.e. 500.00)
+    private static final long NEAR_MIN_BALANCE = MIN_BALANCE + MIN_BALANCE / 5; // flagged in admin totals
+    private static final int STREAM_CHUNK = 1024; // history positions fetched per step when streaming
+
+    // Persistence files; the .ser pair is only read once, to migrate to the binary snapshot
+    private final transient File SNAPSHOT_FILE;
+    private final transient File ACCOUNTS_FILE;
+    private final transient File TXN_FILE;
+    private final transient File TXN_STORE_DIR;
+    private final transient File AUDIT_FILE;
+    private final transient File JOURNAL_FILE;
+    private final transient File LOCK_FILE;
+    private transient FileChannel lockChannel; // holds the data-directory lock while the journal is open
+
+    // Fold the journal into a fresh snapshot once it grows past this size
+    private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+    private transient volatile Journal journal;
+    private transient volatile boolean checkpointDue;
+
+    // Locking: operations on one account serialize on that account's stripe, so
+    // unrelated accounts proceed in parallel. Mutations also hold the shared side
+    // of stateLock; saveState/loadState take the exclusive side to get a stable cut.
+    private static final int LOCK_STRIPES = 256; // power of two
+    private final transient ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    private final transient ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+    // Audit lines are written by a background thread from committed journal entries
+    private static final int AUDIT_RING = 8192; // power of two
+    private transient volatile AuditLog audit;
+    private transient Thread auditDrainHook;
+
+    // Committed balance versions for consistent reads; fed from the journal listener
+    private final transient ReadSnapshot.Registry versions = new ReadSnapshot.Registry();
+
+    // Latency histograms and failure counts; published over JMX while the journal is open
+    private final transient Metrics metrics = new Metrics();
+
+    // Idempotency keys of committed operations; rebuilt from the snapshot and journal on load
+    private final transient IdempotencyCache dedup = new IdempotencyCache();
+
+    // Admin reporting figures, updated from the journal listener; see Aggregates
+    private final transient Aggregates aggregates = new Aggregates(NEAR_MIN_BALANCE);
 
-    // Persistence files
-    private final transient File ACCOUNTS_FILE = new File("accounts.ser");
-    private final transient File TXN_FILE = new File("transactions.ser");
-    private final transient File AUDIT_FILE = new File("audit.log");
+    // This shard's side of cross-shard transfers still in doubt, by transfer id; the
+    // PREPARE_OUT/PREPARE_IN entries, kept in the snapshot until they are resolved
+    private final transient Map<String, Journal.Entry> prepared = new ConcurrentHashMap<>();
+
+    // Per accrual partition, the newest business date posted as an epoch day. Kept in
+    // the snapshot and rebuilt from the keyed journal batches, so unlike the keys it
+    // never expires. Written under the partition's stripe lock.
+    private static final String ACCRUAL_KEY = "accrual:"; // reserved idempotency key prefix
+    private static final long NOT_ACCRUED = Long.MIN_VALUE;
+    private final transient long[] accruedThrough = new long[ACCRUAL_PARTITIONS];
+
+    // How recent transfer ids were resolved here (true = committed), oldest first, so a
+    // commit after an abort is refused rather than ignored. Guarded by its own monitor;
+    // not in the snapshot, so after a restart it only covers the replayed journal tail.
+    private static final int RESOLVED_REMEMBERED = 1 << 16;
+    private final transient LinkedHashMap<String, Boolean> resolved = new LinkedHashMap<>();
+
+    // Set while this bank streams its journal to followers; see Replication
+    private transient volatile Replication.Leader replicator;
+    private transient ObjectName metricsName;
+    private final transient File METRICS_FILE;
+    private final transient File VERIFY_FILE;
 
     public Bank(String name) {
+        this(name, new File("."));
+    }
+
+    // Every persistence file lives under dataDir, so several banks can run side by side
+    public Bank(String name, File dataDir) {
         this.name = name;
+        this.SNAPSHOT_FILE = new File(dataDir, "bank.snap");
+        this.ACCOUNTS_FILE = new File(dataDir, "accounts.ser");
+        this.TXN_FILE = new File(dataDir, "transactions.ser");
+        this.TXN_STORE_DIR = new File(dataDir, "txnstore");
+        this.AUDIT_FILE = new File(dataDir, "audit.log");
+        this.JOURNAL_FILE = new File(dataDir, "journal.log");
+        this.LOCK_FILE = new File(dataDir, "bank.lock");
+        this.METRICS_FILE = new File(dataDir, "metrics.log");
+        this.VERIFY_FILE = new File(dataDir, "verify.ckpt");
+        for (int i = 0; i < LOCK_STRIPES; i++) stripes[i] = new ReentrantLock();
+        Arrays.fill(accruedThrough, NOT_ACCRUED);
+        metrics.gauge("ReplicationFollowers", () -> {
+            Replication.Leader r = replicator;
+            return r == null ? 0L : (long) r.followers();
+        });
+        metrics.gauge("ReplicationLagRecords", () -> {
+            Replication.Leader r = replicator;
+            return r == null ? 0L : r.maxLagRecords();
+        });
+        metrics.gauge("ReplicationLagMillis", () -> {
+            Replication.Leader r = replicator;
+            return r == null ? 0L : r.maxLagMillis();
+        });
+        metrics.gauge("ReplicationSyncTimeouts", () -> {
+            Replication.Leader r = replicator;
+            return r == null ? 0L : r.syncTimeouts();
+        });
     }
 
     public String getName() { return name; }
 
+    // A shard of a ShardedBank numbers its accounts from [first, last] only. Call after loadState.
+    public void setAccountNumberRange(int first, int last) {
+        if (first > last) throw new IllegalArgumentException("Empty account number range");
+        nextAccountNumber.accumulateAndGet(first, Math::max);
+        lastAccountNumber = last;
+    }
+
+    // Batches concurrent journal writes into one fsync. Callers still return only
+    // once their own record is durable, but they wait outside the account locks.
+    public void enableGroupCommit(int maxBatchSize, long maxWaitMillis) throws IOException {
+        journal().enableGroupCommit(maxBatchSize, maxWaitMillis);
+    }
+
+    public Journal.CommitStats getCommitStats() throws IOException {
+        return journal().commitStats();
+    }
+
+    // BLOCK (the default) never loses an audit line; DROP keeps commits moving if the disk stalls
+    public void setAuditOverflow(AuditLog.Overflow policy) throws IOException {
+        journal();
+        audit.setOverflow(policy);
+    }
+
+    public Metrics getMetrics() { return metrics; }
+
+    // Appends a text summary of the metrics to metrics.log every periodSeconds
+    public void dumpMetricsEvery(long periodSeconds) {
+        metrics.startDump(METRICS_FILE, periodSeconds);
+    }
+
+    // Keys are forgotten once more than maxEntries are held or they are older than ttlMillis
+    public void configureIdempotency(int maxEntries, long ttlMillis) {
+        dedup.configure(maxEntries, ttlMillis);
+    }
+
+    // audit.log is sealed into a compressed segment once it reaches maxBytes or its oldest line maxAgeMillis
+    public void setAuditRotation(long maxBytes, long maxAgeMillis) throws IOException {
+        journal();
+        audit.setRotation(maxBytes, maxAgeMillis);
+    }
+
+    // Returns once every audit line for operations completed so far is in audit.log
+    public void flushAudit() throws IOException {
+        journal();
+        audit.flush();
+    }
+
     // Create new account with simple KYC validation
-    public synchronized Account createAccount(String fullName, String governmentId, double initialDeposit) throws BankException, IOException {
+    public Account createAccount(String fullName, String governmentId, long initialDeposit) throws BankException, IOException {
+        return createAccount(fullName, governmentId, initialDeposit, null);
+    }
+
+    // Mutations take an optional idempotency key: a repeat of a committed request with
+    // the same key returns the original outcome instead of running again
+    public Account createAccount(String fullName, String governmentId, long initialDeposit,
+                                 String idempotencyKey) throws BankException, IOException {
+        long started = System.nanoTime();
+        IdempotencyCache.Slot claim = null;
+        try {
+            validateApplicant(fullName, governmentId, initialDeposit);
+            claim = claim(idempotencyKey);
+            if (claim != null && claim.isDone()) {
+                return accounts.get(retried(claim, Journal.Op.CREATE, 0, 0, initialDeposit, fullName, governmentId).account);
+            }
+
+            Account acc;
+            long seq;
+            int accNo = nextAccountNumber.getAndIncrement();
+            if (accNo > lastAccountNumber) throw new BankException("No account numbers left");
+            ReentrantLock lock = stripe(accNo);
+            long waitStarted = System.nanoTime();
+            stateLock.readLock().lock();
+            lock.lock();
+            metrics.recordPhase(Metrics.Phase.LOCK_WAIT, waitStarted);
+            try {
+                seq = commit(Journal.Op.CREATE, accNo, 0, initialDeposit, fullName, governmentId, idempotencyKey);
+                acc = accounts.get(accNo);
+            } finally {
+                lock.unlock();
+                stateLock.readLock().unlock();
+            }
+            afterCommit(seq);
+            return acc;
+        } catch (BankException | RuntimeException e) {
+            if (claim != null) dedup.abandon(claim);
+            metrics.failed(Metrics.Op.CREATE, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.CREATE, started);
+        }
+    }
+
+    // KYC and opening-deposit rules; touches no state, so bulk imports run it on every core
+    static void validateApplicant(String fullName, String governmentId, long initialDeposit) throws BankException {
         if (fullName == null || fullName.length() < 3) throw new KYCException("Name too short for KYC");
         if (governmentId == null || governmentId.length() < 4) throw new KYCException("Invalid government ID for KYC");
-        if (initialDeposit < MIN_BALANCE) throw new BankException("Initial deposit must be at least minimum balance: " + MIN_BALANCE);
+        if (initialDeposit < MIN_BALANCE) throw new BankException("Initial deposit must be at least minimum balance: " + Money.format(MIN_BALANCE));
+    }
 
-        int accNo = nextAccountNumber++;
-        Account acc = new Account(accNo, fullName, governmentId, initialDeposit);
-        accounts.put(accNo, acc);
+    // Opens accounts for applicants that passed validateApplicant, under one block of
+    // account numbers and one journal batch: a single write, fsync and durability wait
+    // for the lot. Returns the first number; applicant i gets first + i. If the batch
+    // is not journaled the block is handed back, unless later numbers were taken since.
+    public int createAccounts(List<Onboarding.Applicant> applicants) throws BankException {
+        if (applicants.isEmpty()) throw new IllegalArgumentException("no applicants");
+        long started = System.nanoTime();
+        int n = applicants.size();
+        int first = nextAccountNumber.getAndAdd(n);
+        boolean journaled = false;
+        try {
+            if ((long) first + n - 1 > lastAccountNumber) throw new BankException("No account numbers left");
+            boolean[] needed = new boolean[LOCK_STRIPES];
+            for (int i = 0; i < Math.min(n, LOCK_STRIPES); i++) needed[stripeIndex(first + i)] = true;
+            long seq;
+            long waitStarted = System.nanoTime();
+            stateLock.readLock().lock();
+            for (int i = 0; i < LOCK_STRIPES; i++) if (needed[i]) stripes[i].lock();
+            metrics.recordPhase(Metrics.Phase.LOCK_WAIT, waitStarted);
+            try {
+                List<Journal.Entry> drafts = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    Onboarding.Applicant a = applicants.get(i);
+                    drafts.add(Journal.Entry.draft(Journal.Op.CREATE, first + i, 0, a.deposit, a.name, a.governmentId));
+                }
+                List<Journal.Entry> committed;
+                try {
+                    Journal j = journal();
+                    long appendStarted = System.nanoTime();
+                    committed = j.appendBatch(Transaction.toEpochMilli(LocalDateTime.now()), drafts);
+                    journaled = true;
+                    metrics.recordPhase(Metrics.Phase.JOURNAL_APPEND, appendStarted);
+                    if (j.size() > CHECKPOINT_BYTES) checkpointDue = true;
+                } catch (IOException ex) {
+                    throw new BankException("Failed to persist accounts: " + ex.getMessage());
+                }
+                for (Journal.Entry e : committed) apply(e, true, false, true);
+                seq = committed.get(committed.size() - 1).seq;
+            } finally {
+                for (int i = LOCK_STRIPES - 1; i >= 0; i--) if (needed[i]) stripes[i].unlock();
+                stateLock.readLock().unlock();
+            }
+            afterCommit(seq);
+            return first;
+        } catch (BankException | RuntimeException e) {
+            if (!journaled) nextAccountNumber.compareAndSet(first + n, first);
+            metrics.failed(Metrics.Op.BATCH, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.BATCH, started);
+        }
+    }
 
-        Transaction t = new Transaction(accNo, Transaction.Type.DEPOSIT, initialDeposit, "Initial deposit");
-        transactions.add(t);
-        acc.addTransaction(t);
+    public void deposit(int accountNumber, long amount) throws BankException {
+        deposit(accountNumber, amount, null);
+    }
 
-        writeAudit("CREATE_ACCOUNT", String.format("Acc:%d Name:%s Init:%.2f", accNo, fullName, initialDeposit));
-        saveState();
-        return acc;
+    public void deposit(int accountNumber, long amount, String idempotencyKey) throws BankException {
+        long started = System.nanoTime();
+        IdempotencyCache.Slot claim = null;
+        try {
+            claim = claim(idempotencyKey);
+            if (claim != null && claim.isDone()) {
+                retried(claim, Journal.Op.DEPOSIT, accountNumber, 0, amount, null, null);
+                return;
+            }
+            long seq;
+            ReentrantLock lock = stripe(accountNumber);
+            long waitStarted = System.nanoTime();
+            stateLock.readLock().lock();
+            lock.lock();
+            metrics.recordPhase(Metrics.Phase.LOCK_WAIT, waitStarted);
+            try {
+                findAccount(accountNumber);
+                seq = commit(Journal.Op.DEPOSIT, accountNumber, 0, amount, null, null, idempotencyKey);
+            } finally {
+                lock.unlock();
+                stateLock.readLock().unlock();
+            }
+            afterCommit(seq);
+        } catch (BankException | RuntimeException e) {
+            if (claim != null) dedup.abandon(claim);
+            metrics.failed(Metrics.Op.DEPOSIT, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.DEPOSIT, started);
+        }
     }
 
-    public synchronized void deposit(int accountNumber, double amount) throws BankException {
-        Account acc = findAccount(accountNumber);
-        acc.credit(amount);
-        Transaction t = new Transaction(accountNumber, Transaction.Type.DEPOSIT, amount, "Deposit");
-        transactions.add(t);
-        acc.addTransaction(t);
-        writeAudit("DEPOSIT", String.format("Acc:%d Amount:%.2f", accountNumber, amount));
-        saveState();
+    public void withdraw(int accountNumber, long amount) throws BankException {
+        withdraw(accountNumber, amount, null);
     }
 
-    public synchronized void withdraw(int accountNumber, double amount) throws BankException {
-        Account acc = findAccount(accountNumber);
-        if (acc.getBalance() - amount < MIN_BALANCE) {
-            throw new InsufficientBalanceException("Withdrawal would breach minimum balance of " + MIN_BALANCE);
+    public void withdraw(int accountNumber, long amount, String idempotencyKey) throws BankException {
+        long started = System.nanoTime();
+        IdempotencyCache.Slot claim = null;
+        try {
+            claim = claim(idempotencyKey);
+            if (claim != null && claim.isDone()) {
+                retried(claim, Journal.Op.WITHDRAW, accountNumber, 0, amount, null, null);
+                return;
+            }
+            long seq;
+            ReentrantLock lock = stripe(accountNumber);
+            long waitStarted = System.nanoTime();
+            stateLock.readLock().lock();
+            lock.lock();
+            metrics.recordPhase(Metrics.Phase.LOCK_WAIT, waitStarted);
+            try {
+                Account acc = findAccount(accountNumber);
+                if (!acc.tryDebit(amount, MIN_BALANCE)) {
+                    throw new InsufficientBalanceException("Withdrawal would breach minimum balance of " + Money.format(MIN_BALANCE));
+                }
+                seq = commitDebited(acc, amount, Journal.Op.WITHDRAW, accountNumber, 0, idempotencyKey);
+            } finally {
+                lock.unlock();
+                stateLock.readLock().unlock();
+            }
+            afterCommit(seq);
+        } catch (BankException | RuntimeException e) {
+            if (claim != null) dedup.abandon(claim);
+            metrics.failed(Metrics.Op.WITHDRAW, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.WITHDRAW, started);
         }
-        acc.debit(amount);
-        Transaction t = new Transaction(accountNumber, Transaction.Type.WITHDRAW, amount, "Withdraw");
-        transactions.add(t);
-        acc.addTransaction(t);
-        writeAudit("WITHDRAW", String.format("Acc:%d Amount:%.2f", accountNumber, amount));
-        saveState();
     }
 
-    public synchronized void transfer(int fromAcc, int toAcc, double amount) throws BankException {
-        if (fromAcc == toAcc) throw new BankException("Cannot transfer to same account");
-        Account aFrom = findAccount(fromAcc);
-        Account aTo = findAccount(toAcc);
+    public void transfer(int fromAcc, int toAcc, long amount) throws BankException {
+        transfer(fromAcc, toAcc, amount, null);
+    }
+
+    public void transfer(int fromAcc, int toAcc, long amount, String idempotencyKey) throws BankException {
+        long started = System.nanoTime();
+        IdempotencyCache.Slot claim = null;
+        try {
+            if (fromAcc == toAcc) throw new BankException("Cannot transfer to same account");
+            claim = claim(idempotencyKey);
+            if (claim != null && claim.isDone()) {
+                retried(claim, Journal.Op.TRANSFER, fromAcc, toAcc, amount, null, null);
+                return;
+            }
+            long seq;
+            // always lock the lower stripe first so two opposing transfers cannot deadlock
+            int i = stripeIndex(fromAcc), j = stripeIndex(toAcc);
+            ReentrantLock first = stripes[Math.min(i, j)], second = stripes[Math.max(i, j)];
+            long waitStarted = System.nanoTime();
+            stateLock.readLock().lock();
+            first.lock();
+            if (i != j) second.lock();
+            metrics.recordPhase(Metrics.Phase.LOCK_WAIT, waitStarted);
+            try {
+                Account aFrom = findAccount(fromAcc);
+                findAccount(toAcc);
 
-        if (aFrom.getBalance() - amount < MIN_BALANCE) {
-            throw new InsufficientBalanceException("Transfer would breach minimum balance of " + MIN_BALANCE);
+                if (!aFrom.tryDebit(amount, MIN_BALANCE)) {
+                    throw new InsufficientBalanceException("Transfer would breach minimum balance of " + Money.format(MIN_BALANCE));
+                }
+                seq = commitDebited(aFrom, amount, Journal.Op.TRANSFER, fromAcc, toAcc, idempotencyKey);
+            } finally {
+                if (i != j) second.unlock();
+                first.unlock();
+                stateLock.readLock().unlock();
+            }
+            afterCommit(seq);
+        } catch (BankException | RuntimeException e) {
+            if (claim != null) dedup.abandon(claim);
+            metrics.failed(Metrics.Op.TRANSFER, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.TRANSFER, started);
         }
-        aFrom.debit(amount);
-        aTo.credit(amount);
+    }
+
+    // Validates and applies many postings under one round of locking, one journal
+    // group (a single fsync in sync mode) and one durability wait. Each op is checked
+    // against balances as the earlier accepted ops in the batch leave them.
+    public Batch.Result applyBatch(List<Batch.Op> ops, Batch.Mode mode) throws BankException {
+        long started = System.nanoTime();
+        try {
+            Batch.Result result = new Batch.Result(ops.size());
+            if (ops.isEmpty()) return result;
 
-        Transaction t1 = new Transaction(fromAcc, Transaction.Type.TRANSFER_OUT, amount, "Transfer to " + toAcc);
-        Transaction t2 = new Transaction(toAcc, Transaction.Type.TRANSFER_IN, amount, "Transfer from " + fromAcc);
-        transactions.add(t1); transactions.add(t2);
-        aFrom.addTransaction(t1); aTo.addTransaction(t2);
+            // every stripe the batch touches, locked in ascending order as transfer() does
+            boolean[] needed = new boolean[LOCK_STRIPES];
+            for (Batch.Op op : ops) {
+                needed[stripeIndex(op.account)] = true;
+                if (op.kind == Journal.Op.TRANSFER) needed[stripeIndex(op.counterparty)] = true;
+            }
+            long seq;
+            long waitStarted = System.nanoTime();
+            stateLock.readLock().lock();
+            for (int i = 0; i < LOCK_STRIPES; i++) if (needed[i]) stripes[i].lock();
+            metrics.recordPhase(Metrics.Phase.LOCK_WAIT, waitStarted);
+            try {
+                Map<Integer, Long> projected = new HashMap<>();
+                List<Journal.Entry> drafts = new ArrayList<>();
+                List<Integer> accepted = new ArrayList<>();
+                for (int i = 0; i < ops.size(); i++) {
+                    Batch.Op op = ops.get(i);
+                    try {
+                        validateBatchOp(op, projected);
+                    } catch (BankException e) {
+                        result.reject(i, e);
+                        if (mode == Batch.Mode.ATOMIC) return result;
+                        continue;
+                    }
+                    drafts.add(Journal.Entry.draft(op.kind, op.account, op.counterparty, op.amount));
+                    accepted.add(i);
+                }
+                if (drafts.isEmpty()) return result;
 
-        writeAudit("TRANSFER", String.format("From:%d To:%d Amount:%.2f", fromAcc, toAcc, amount));
-        saveState();
+                List<Journal.Entry> committed;
+                try {
+                    Journal j = journal();
+                    long appendStarted = System.nanoTime();
+                    committed = j.appendBatch(Transaction.toEpochMilli(LocalDateTime.now()), drafts);
+                    metrics.recordPhase(Metrics.Phase.JOURNAL_APPEND, appendStarted);
+                    if (j.size() > CHECKPOINT_BYTES) checkpointDue = true;
+                } catch (IOException ex) {
+                    throw new BankException("Failed to persist batch: " + ex.getMessage());
+                }
+                // every stripe involved is held and each op was checked, so the debits cannot fail
+                for (int k = 0; k < committed.size(); k++) {
+                    apply(committed.get(k), true, false, true);
+                    result.markApplied(accepted.get(k));
+                }
+                seq = committed.get(committed.size() - 1).seq;
+            } finally {
+                for (int i = LOCK_STRIPES - 1; i >= 0; i--) if (needed[i]) stripes[i].unlock();
+                stateLock.readLock().unlock();
+            }
+            afterCommit(seq);
+            return result;
+        } catch (BankException | RuntimeException e) {
+            metrics.failed(Metrics.Op.BATCH, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.BATCH, started);
+        }
     }
 
-    public synchronized double getBalance(int accountNumber) throws BankException {
-        Account acc = findAccount(accountNumber);
-        return acc.getBalance();
+    // Accrual runs partition accounts by lock stripe, so each partition posts under one lock
+    static final int ACCRUAL_PARTITIONS = LOCK_STRIPES;
+
+    static int accrualPartition(int accountNumber) {
+        return stripeIndex(accountNumber);
     }
 
-    public synchronized String getName(int accountNumber) throws BankException {
+    // Posts one accrual partition for businessDate as a single journal batch keyed
+    // accrual:<date>:<partition>. A fee the balance can no longer cover is dropped.
+    // Returns the postings made, or null if this partition already posted that date.
+    // A date before one already posted is refused.
+    List<Journal.Entry> postAccruals(LocalDate businessDate, int partition, List<Journal.Entry> postings)
+            throws BankException {
+        long started = System.nanoTime();
+        String key = ACCRUAL_KEY + businessDate + ":" + partition;
+        IdempotencyCache.Slot claim = null;
+        try {
+            claim = dedup.claim(key);
+            if (claim.isDone()) return null;
+            long seq;
+            List<Journal.Entry> committed;
+            ReentrantLock lock = stripes[partition];
+            long waitStarted = System.nanoTime();
+            stateLock.readLock().lock();
+            lock.lock();
+            metrics.recordPhase(Metrics.Phase.LOCK_WAIT, waitStarted);
+            try {
+                // the key may have expired; the date posted is kept for good
+                long through = accruedThrough[partition];
+                if (through == businessDate.toEpochDay()) {
+                    dedup.abandon(claim);
+                    return null;
+                }
+                if (through > businessDate.toEpochDay()) {
+                    throw new BankException("Accrual partition " + partition + " already posted "
+                            + LocalDate.ofEpochDay(through));
+                }
+                List<Journal.Entry> drafts = new ArrayList<>(postings.size());
+                for (Journal.Entry p : postings) {
+                    if (stripeIndex(p.account) != partition) {
+                        throw new IllegalArgumentException("Account " + p.account + " is not in partition " + partition);
+                    }
+                    Account acc = findAccount(p.account);
+                    if (p.op == Journal.Op.WITHDRAW && acc.getBalance() < p.amount) continue;
+                    // the key rides on the first member; the batch is all-or-nothing, so it marks the lot
+                    drafts.add(drafts.isEmpty() ? Journal.Entry.draft(p.op, p.account, 0, p.amount, key) : p);
+                }
+                if (drafts.isEmpty()) {
+                    dedup.abandon(claim);
+                    return drafts;
+                }
+                try {
+                    Journal j = journal();
+                    long appendStarted = System.nanoTime();
+                    committed = j.appendBatch(Transaction.toEpochMilli(LocalDateTime.now()), drafts);
+                    metrics.recordPhase(Metrics.Phase.JOURNAL_APPEND, appendStarted);
+                    if (j.size() > CHECKPOINT_BYTES) checkpointDue = true;
+                } catch (IOException ex) {
+                    throw new BankException("Failed to persist accruals: " + ex.getMessage());
+                }
+                for (Journal.Entry e : committed) apply(e, true, false, true);
+                seq = committed.get(committed.size() - 1).seq;
+            } finally {
+                lock.unlock();
+                stateLock.readLock().unlock();
+            }
+            afterCommit(seq);
+            return committed;
+        } catch (BankException | RuntimeException e) {
+            if (claim != null) dedup.abandon(claim);
+            metrics.failed(Metrics.Op.BATCH, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.BATCH, started);
+        }
+    }
+
+    // Notes the business date of an accrual batch from its key, accrual:<date>:<partition>
+    private void noteAccrual(String key) {
+        int sep = key.lastIndexOf(':');
+        try {
+            long day = LocalDate.parse(key.substring(ACCRUAL_KEY.length(), sep)).toEpochDay();
+            int partition = Integer.parseInt(key.substring(sep + 1));
+            if (partition >= 0 && partition < ACCRUAL_PARTITIONS && day > accruedThrough[partition]) {
+                accruedThrough[partition] = day;
+            }
+        } catch (DateTimeParseException | NumberFormatException | IndexOutOfBoundsException notOurs) {
+            // a client key from before the prefix was reserved
+        }
+    }
+
+    private Map<Integer, Long> accrued() {
+        Map<Integer, Long> m = new HashMap<>();
+        for (int i = 0; i < ACCRUAL_PARTITIONS; i++) if (accruedThrough[i] != NOT_ACCRUED) m.put(i, accruedThrough[i]);
+        return m;
+    }
+
+    // Checks one batch op against projected balances and records its effect on them
+    private void validateBatchOp(Batch.Op op, Map<Integer, Long> projected) throws BankException {
+        if (op.amount <= 0) throw new BankException("Amount must be positive");
+        Account acc = findAccount(op.account);
+        long balance = projected.getOrDefault(op.account, acc.getBalance());
+        switch (op.kind) {
+            case DEPOSIT:
+                projected.put(op.account, balance + op.amount);
+                break;
+            case WITHDRAW:
+                if (balance - op.amount < MIN_BALANCE) {
+                    throw new InsufficientBalanceException("Withdrawal would breach minimum balance of " + Money.format(MIN_BALANCE));
+                }
+                projected.put(op.account, balance - op.amount);
+                break;
+            case TRANSFER:
+                if (op.account == op.counterparty) throw new BankException("Cannot transfer to same account");
+                Account to = findAccount(op.counterparty);
+                if (balance - op.amount < MIN_BALANCE) {
+                    throw new InsufficientBalanceException("Transfer would breach minimum balance of " + Money.format(MIN_BALANCE));
+                }
+                projected.put(op.account, balance - op.amount);
+                projected.put(op.counterparty, projected.getOrDefault(op.counterparty, to.getBalance()) + op.amount);
+                break;
+            default:
+                throw new BankException("Unsupported batch operation: " + op.kind);
+        }
+    }
+
+    // Reads take no bank-level lock; Account guards its own balance and history
+    public long getBalance(int accountNumber) throws BankException {
+        long started = System.nanoTime();
+        try {
+            Account acc = findAccount(accountNumber);
+            return acc.getBalance();
+        } catch (BankException | RuntimeException e) {
+            metrics.failed(Metrics.Op.BALANCE, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.BALANCE, started);
+        }
+    }
+
+    public String getName(int accountNumber) throws BankException {
         Account acc = findAccount(accountNumber);
         return acc.getHolderName();
     }
 
-    public synchronized List<Transaction> getMiniStatement(int accountNumber, int n) throws BankException {
+    public List<Transaction> getMiniStatement(int accountNumber, int n) throws BankException {
+        long started = System.nanoTime();
+        try {
+            Account acc = findAccount(accountNumber);
+            List<Transaction> lst = new ArrayList<>();
+            for (long index : acc.getRecentTransactionIndexes(n, store)) lst.add(store.get(index));
+            return lst;
+        } catch (BankException | RuntimeException e) {
+            metrics.failed(Metrics.Op.STATEMENT, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.STATEMENT, started);
+        }
+    }
+
+    public int getTransactionCount(int accountNumber) throws BankException {
+        return findAccount(accountNumber).getTransactionCount(store);
+    }
+
+    // Full history, newest first: page 0 is the latest pageSize transactions, page 1 the ones before them
+    public List<Transaction> getStatementPage(int accountNumber, int page, int pageSize) throws BankException {
+        if (page < 0 || pageSize <= 0) throw new BankException("Invalid page request");
         Account acc = findAccount(accountNumber);
-        List<Transaction> lst = acc.getRecentTransactions(n);
+        long to = acc.getTransactionCount(store) - (long) page * pageSize;
+        List<Transaction> lst = new ArrayList<>();
+        if (to <= 0) return lst;
+        long[] indexes = acc.getHistoryIndexes((int) Math.max(0, to - pageSize), (int) to, store);
+        for (int i = indexes.length - 1; i >= 0; i--) lst.add(store.get(indexes[i]));
         return lst;
     }
 
+    // Feeds sink every transaction with from <= timestamp < to, oldest first. The index is
+    // read a chunk at a time, so memory stays flat however much history the range covers.
+    public void streamTransactions(int accountNumber, LocalDateTime from, LocalDateTime to,
+                                   Consumer<Transaction> sink) throws BankException {
+        Account acc = findAccount(accountNumber);
+        int lo = acc.historyPositionAt(Transaction.toEpochMilli(from), store);
+        int hi = acc.historyPositionAt(Transaction.toEpochMilli(to), store);
+        for (int pos = lo; pos < hi; pos += STREAM_CHUNK) {
+            for (long index : acc.getHistoryIndexes(pos, Math.min(hi, pos + STREAM_CHUNK), store)) {
+                sink.accept(store.get(index));
+            }
+        }
+    }
+
+    // Streams history through sink as CSV or JSON lines: one account's (accountNumber > 0) or
+    // the whole bank's, limited to from <= timestamp < to where either bound may be null.
+    // resumeFrom is the Cursor.position of an earlier run of the same export, 0 for a fresh one.
+    public Export.Cursor exportTransactions(Export.Sink sink, int accountNumber, LocalDateTime from, LocalDateTime to,
+                                            long resumeFrom) throws BankException, IOException {
+        long lo = from == null ? Long.MIN_VALUE : Transaction.toEpochMilli(from);
+        long hi = to == null ? Long.MAX_VALUE : Transaction.toEpochMilli(to);
+        TransactionStore st = store();
+        if (resumeFrom == 0) sink.transactionHeader();
+        sink.startAt(resumeFrom);
+        if (accountNumber > 0) {
+            // cursor positions are places in the account's history
+            Account acc = findAccount(accountNumber);
+            int first = (int) Math.max(acc.historyPositionAt(lo, st), resumeFrom);
+            int last = acc.historyPositionAt(hi, st);
+            for (int pos = first; pos < last; pos += STREAM_CHUNK) {
+                long[] indexes = acc.getHistoryIndexes(pos, Math.min(last, pos + STREAM_CHUNK), st);
+                for (int k = 0; k < indexes.length; k++) sink.transaction(st, indexes[k], pos + k + 1);
+            }
+        } else {
+            // cursor positions are store indexes; sealed segments outside the range are skipped whole
+            long n = st.size();
+            for (long i = resumeFrom; i < n; ) {
+                long segEnd = Math.min(n, st.segmentEnd(i));
+                if (!st.segmentMayHold(i, lo, hi)) {
+                    i = segEnd;
+                    continue;
+                }
+                for (; i < segEnd; i++) {
+                    long ts = st.timestamp(i);
+                    if (ts >= lo && ts < hi) sink.transaction(st, i, i + 1);
+                }
+            }
+        }
+        return sink.finish();
+    }
+
+    // Streams the audit trail from offset resumeFrom through sink, reading sealed (and
+    // compressed) segments as well as the active audit.log. Only complete lines are
+    // exported, so a line the writer is still appending is picked up by the next run.
+    public Export.Cursor exportAudit(Export.Sink sink, long resumeFrom) throws IOException {
+        flushAudit();
+        if (resumeFrom == 0) sink.auditHeader();
+        sink.startAt(resumeFrom);
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        long next = resumeFrom; // trail offset just past the last complete line
+        for (AuditLog.Segment seg : audit.segments()) {
+            long end = seg.start + seg.length;
+            if (end <= resumeFrom) continue;
+            try (InputStream is = audit.open(seg)) {
+                long pos = seg.start;
+                if (resumeFrom > pos) {
+                    is.skipNBytes(resumeFrom - pos);
+                    pos = resumeFrom;
+                }
+                ReadableByteChannel ch = Channels.newChannel(is);
+                while (pos < end) {
+                    // never read past the length listed, in case the active file has grown since
+                    in.limit(in.position() + (int) Math.min(in.remaining(), end - pos));
+                    int n = ch.read(in);
+                    in.limit(in.capacity());
+                    if (n < 0) break;
+                    pos += n;
+                    byte[] a = in.array();
+                    int start = 0, filled = in.position();
+                    for (int i = 0; i < filled; i++) {
+                        if (a[i] != '\n') continue;
+                        int len = i - start;
+                        if (len > 0 && a[i - 1] == '\r') len--;
+                        next += i + 1 - start;
+                        if (len > 0) sink.auditLine(a, start, len, next);
+                        start = i + 1;
+                    }
+                    // carry the unfinished line over, into the next segment if need be;
+                    // grow only for a line longer than the buffer
+                    in.flip();
+                    in.position(start);
+                    in.compact();
+                    if (!in.hasRemaining()) {
+                        in.flip();
+                        in = ByteBuffer.allocate(in.capacity() * 2).put(in);
+                    }
+                }
+            }
+        }
+        return sink.finish();
+    }
+
+    // Live view: each balance is current but a listing can straddle a transfer; use snapshot() for reports
     public Map<Integer, Account> listAllAccounts() {
-        return Collections.unmodifiableMap(accounts);
+        return accounts.asMap();
+    }
+
+    // Consistent view of all accounts as of the latest committed operation. Takes no
+    // bank lock and does not hold up writers; close it when done.
+    public ReadSnapshot snapshot() {
+        return versions.open(accounts);
+    }
+
+    // Bank-wide totals and near-minimum count, kept current as operations commit
+    public Aggregates.Totals totals() {
+        return aggregates.totals();
+    }
+
+    // Count and amount of each transaction type recorded on date
+    public Aggregates.DayTotals dailyTotals(LocalDate date) {
+        return aggregates.day(date);
+    }
+
+    // The n largest balances (at most Aggregates.TOP_CAPACITY), largest first. Normally
+    // answered from the maintained set; if too many of its members have since dropped,
+    // the set is refilled with one pass over the accounts while writers are held off.
+    public List<ReadSnapshot.AccountView> topAccountsByBalance(int n) {
+        List<ReadSnapshot.AccountView> top = aggregates.top(n, accounts);
+        if (top != null) return top;
+        stateLock.writeLock().lock();
+        try {
+            aggregates.reset(aggregates.totals().seq, accounts);
+            return aggregates.top(n, accounts);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    // Recomputes every balance from the transaction history and checks the sealed history
+    // segments against their checksums; see Reconciler. With incremental, starts from the
+    // last clean run instead of the beginning of the history.
+    public Reconciler.Report verifyLedger(boolean incremental) throws IOException {
+        TransactionStore st = store();
+        ReadSnapshot snap;
+        long covered;
+        Map<Integer, Long> held = new HashMap<>();
+        // writers are held off only long enough to pin a snapshot and the history length it covers
+        stateLock.writeLock().lock();
+        try {
+            snap = versions.open(accounts);
+            covered = st.size();
+            for (Journal.Entry e : prepared.values()) {
+                if (e.op == Journal.Op.PREPARE_OUT) held.merge(e.account, e.amount, Long::sum);
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        try {
+            return Reconciler.run(snap, st, covered, held, VERIFY_FILE, incremental);
+        } finally {
+            snap.close();
+        }
+    }
+
+    // ---------------- Cross-shard transfers ----------------
+    // This bank's side of a ShardedBank transfer between shards, under a transfer id
+    // chosen by the coordinator. A prepare is journaled and durable before it returns,
+    // so the vote survives a crash: the payer's side takes the amount off the balance
+    // and holds it, the payee's side checks the account and records the intent. Neither
+    // side writes history until it commits. Repeating a commit or abort that already
+    // took effect is a no-op, as is aborting an id never prepared here (presumed abort);
+    // committing an id that was aborted, or is unknown, fails, as does aborting or
+    // re-preparing one that was committed.
+    public void prepareDebit(String transferId, int fromAcc, int toAcc, long amount) throws BankException {
+        prepare(Journal.Op.PREPARE_OUT, transferId, fromAcc, toAcc, amount);
+    }
+
+    public void prepareCredit(String transferId, int toAcc, int fromAcc, long amount) throws BankException {
+        prepare(Journal.Op.PREPARE_IN, transferId, toAcc, fromAcc, amount);
+    }
+
+    public void commitPrepared(String transferId) throws BankException {
+        resolve(transferId, true);
+    }
+
+    public void abortPrepared(String transferId) throws BankException {
+        resolve(transferId, false);
+    }
+
+    // Transfer ids prepared here and not yet committed or aborted
+    public List<String> inDoubt() {
+        return new ArrayList<>(prepared.keySet());
+    }
+
+    private void prepare(Journal.Op op, String transferId, int account, int counterparty, long amount)
+            throws BankException {
+        long started = System.nanoTime();
+        try {
+            IdempotencyCache.validate(transferId);
+            if (amount <= 0) throw new BankException("Amount must be positive");
+            long seq;
+            ReentrantLock lock = stripe(account);
+            long waitStarted = System.nanoTime();
+            stateLock.readLock().lock();
+            lock.lock();
+            metrics.recordPhase(Metrics.Phase.LOCK_WAIT, waitStarted);
+            try {
+                Journal.Entry held = prepared.get(transferId);
+                if (held != null) {
+                    // a repeated prepare gets the same vote once the first one is durable
+                    if (held.op != op || held.account != account || held.counterparty != counterparty
+                            || held.amount != amount) {
+                        throw new BankException("Transfer " + transferId + " was already prepared for a different transfer");
+                    }
+                    seq = held.seq;
+                } else if (resolution(transferId) == Boolean.TRUE) {
+                    throw new BankException("Transfer " + transferId + " was already committed");
+                } else if (op == Journal.Op.PREPARE_OUT) {
+                    Account acc = findAccount(account);
+                    if (!acc.tryDebit(amount, MIN_BALANCE)) {
+                        throw new InsufficientBalanceException("Transfer would breach minimum balance of " + Money.format(MIN_BALANCE));
+                    }
+                    seq = commitDebited(acc, amount, op, account, counterparty, transferId);
+                } else {
+                    findAccount(account);
+                    seq = commit(op, account, counterparty, amount, null, null, transferId);
+                }
+            } finally {
+                lock.unlock();
+                stateLock.readLock().unlock();
+            }
+            afterCommit(seq);
+        } catch (BankException | RuntimeException e) {
+            metrics.failed(Metrics.Op.PREPARE, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.PREPARE, started);
+        }
+    }
+
+    private void resolve(String transferId, boolean commit) throws BankException {
+        long started = System.nanoTime();
+        try {
+            Journal.Entry held = prepared.get(transferId);
+            if (held == null) {
+                settled(transferId, commit);
+                return;
+            }
+            long seq;
+            ReentrantLock lock = stripe(held.account);
+            long waitStarted = System.nanoTime();
+            stateLock.readLock().lock();
+            lock.lock();
+            metrics.recordPhase(Metrics.Phase.LOCK_WAIT, waitStarted);
+            try {
+                // a concurrent resolve of the same id may have got here first
+                if (prepared.get(transferId) != held) {
+                    settled(transferId, commit);
+                    return;
+                }
+                boolean out = held.op == Journal.Op.PREPARE_OUT;
+                Journal.Op op = commit ? (out ? Journal.Op.COMMIT_OUT : Journal.Op.COMMIT_IN)
+                                       : (out ? Journal.Op.ABORT_OUT : Journal.Op.ABORT_IN);
+                seq = commit(op, held.account, held.counterparty, held.amount, null, null, transferId);
+            } finally {
+                lock.unlock();
+                stateLock.readLock().unlock();
+            }
+            afterCommit(seq);
+        } catch (BankException | RuntimeException e) {
+            metrics.failed(Metrics.Op.RESOLVE, e);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Op.RESOLVE, started);
+        }
+    }
+
+    // A commit or abort of an id no longer in doubt: fine if it matches how it ended
+    private void settled(String transferId, boolean commit) throws BankException {
+        Boolean committed = resolution(transferId);
+        if (commit && committed == null) throw new BankException("Transfer " + transferId + " is not prepared here");
+        if (committed != null && committed != commit) {
+            throw new BankException("Transfer " + transferId + " was already " + (committed ? "committed" : "aborted"));
+        }
+    }
+
+    private Boolean resolution(String transferId) {
+        synchronized (resolved) {
+            return resolved.get(transferId);
+        }
+    }
+
+    private void remember(String transferId, Boolean committed) {
+        synchronized (resolved) {
+            resolved.remove(transferId);
+            if (committed == null) return;
+            resolved.put(transferId, committed);
+            if (resolved.size() > RESOLVED_REMEMBERED) {
+                Iterator<String> oldest = resolved.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    // ---------------- Replication ----------------
+    // Streams every committed operation to followers that connect on port (loopback
+    // only); see Replication. With Ack.SYNC each operation also waits, up to
+    // syncTimeoutMillis, for a follower to have it on disk.
+    public Replication.Leader startReplication(int port, Replication.Ack ack, long syncTimeoutMillis) throws IOException {
+        stateLock.writeLock().lock();
+        try {
+            if (replicator != null) throw new IllegalStateException("Replication already started");
+            replicator = new Replication.Leader(this, port, ack, syncTimeoutMillis, Replication.DEFAULT_BACKLOG,
+                    journal().lastSequence());
+            return replicator;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    // Journal sequence of the newest operation applied
+    long lastSequence() throws IOException {
+        return journal().lastSequence();
+    }
+
+    TransactionStore history() throws IOException {
+        return store();
+    }
+
+    // Leader side of catch-up: a snapshot of the current state in a temp file, without
+    // checkpointing, and the journal sequence and history length it covers. Returns once
+    // that sequence is durable here.
+    Replication.Image replicaImage() throws IOException {
+        Replication.Image img;
+        stateLock.writeLock().lock();
+        try {
+            IOException failed = journal().failure();
+            if (failed != null) throw new IOException("Journal stopped after a failed write: " + failed);
+            long seq = journal().lastSequence();
+            long txns = store.size();
+            File f = File.createTempFile("replica", ".snap", TXN_STORE_DIR.getParentFile());
+            Snapshot.write(f, seq, nextAccountNumber.get(), accounts.values(), txns, dedup.entries(), aggregates.days(),
+                    prepared.values(), accrued());
+            img = new Replication.Image(f, seq, txns);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        // under group commit the cut may include records not yet forced here
+        try {
+            journal().awaitDurable(img.seq);
+        } catch (IOException e) {
+            Files.deleteIfExists(img.file.toPath());
+            throw e;
+        }
+        return img;
+    }
+
+    // Follower side: journals and applies what the leader committed, under the leader's
+    // sequence numbers, so a promoted follower carries on the same numbering. header is
+    // the BATCH record of a group, or null with a single member. The follower thread is
+    // the only writer, so no account locks are taken. Returns the last sequence applied.
+    long applyReplicated(Journal.Entry header, List<Journal.Entry> members) throws BankException {
+        stateLock.readLock().lock();
+        try {
+            Journal j = journal();
+            long first = (header != null ? header : members.get(0)).seq;
+            if (first != j.lastSequence() + 1) {
+                throw new BankException("Replication gap: have " + j.lastSequence() + ", received " + first);
+            }
+            List<Journal.Entry> appended;
+            if (header == null) {
+                Journal.Entry e = members.get(0);
+                appended = Collections.singletonList(j.append(e.op, e.timestamp, e.account, e.counterparty, e.amount,
+                        e.holderName, e.governmentId, e.idempotencyKey));
+            } else {
+                appended = j.appendBatch(header.timestamp, members);
+            }
+            if (j.size() > CHECKPOINT_BYTES) checkpointDue = true;
+            for (Journal.Entry e : appended) apply(e, true, false, true);
+            return appended.get(appended.size() - 1).seq;
+        } catch (IOException ex) {
+            throw new BankException("Failed to persist replicated operation: " + ex.getMessage());
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    // Waits until seq is durable here, checkpointing if one is due, before it is acknowledged
+    void syncReplicated(long seq) throws BankException {
+        afterCommit(seq);
+    }
+
+    // Follower side of catch-up: replaces all state with a leader's image. The old
+    // snapshot, journal and history go first, so a crash part way leaves an empty
+    // follower that asks for a whole image again rather than a mix of old and new.
+    void installReplica(InputStream in, long snapshotBytes, Replication.HistoryFill fill) throws IOException {
+        stateLock.writeLock().lock();
+        try {
+            close();
+            Files.deleteIfExists(SNAPSHOT_FILE.toPath());
+            Files.deleteIfExists(JOURNAL_FILE.toPath());
+            Files.deleteIfExists(VERIFY_FILE.toPath());
+            File tmp = new File(SNAPSHOT_FILE.getPath() + ".replica");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                byte[] buf = new byte[64 * 1024];
+                for (long left = snapshotBytes; left > 0; ) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (n < 0) throw new EOFException("Replica image truncated");
+                    out.write(buf, 0, n);
+                    left -= n;
+                }
+                out.getFD().sync();
+            }
+            try (TransactionStore st = new TransactionStore(TXN_STORE_DIR)) {
+                st.truncate(0);
+                fill.fill(st);
+                st.force();
+            }
+            Files.move(tmp.toPath(), SNAPSHOT_FILE.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            loadState();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
     }
 
     // ---------------- Persistence ----------------
-    public synchronized void saveState() {
-        // save accounts
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(ACCOUNTS_FILE))) {
-            oos.writeObject(accounts);
-            oos.writeInt(nextAccountNumber);
+    // Writes a full snapshot and empties the journal. Each mutation only appends
+    // to the journal, so this is a checkpoint rather than part of every operation.
+    public void saveState() {
+        stateLock.writeLock().lock();
+        try {
+            checkpoint();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    // Caller holds the exclusive state lock. Returns whether the snapshot was written.
+    private boolean checkpoint() {
+        long started = System.nanoTime();
+        try {
+            return writeCheckpoint();
+        } finally {
+            metrics.recordPhase(Metrics.Phase.CHECKPOINT, started);
+        }
+    }
+
+    private boolean writeCheckpoint() {
+        checkpointDue = false;
+        long seq;
+        try {
+            seq = journal().lastSequence();
         } catch (IOException e) {
-            System.err.println("Failed to save accounts: " + e.getMessage());
+            System.err.println("Failed to open journal: " + e.getMessage());
+            return false;
+        }
+        // memory may hold operations whose records never reached the disk; see Journal
+        IOException failed = journal.failure();
+        if (failed != null) {
+            System.err.println("Not saving snapshot: the journal stopped after a failed write ("
+                    + failed + "); restart to recover from disk");
+            return false;
         }
-        // save transactions
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(TXN_FILE))) {
-            oos.writeObject(transactions);
+        try {
+            // the snapshot counts store records, so they must be on disk before it is
+            store.force();
+            Snapshot.write(SNAPSHOT_FILE, seq, nextAccountNumber.get(), accounts.values(), store.size(), dedup.entries(),
+                    aggregates.days(), prepared.values(), accrued());
         } catch (IOException e) {
-            System.err.println("Failed to save transactions: " + e.getMessage());
+            System.err.println("Failed to save snapshot: " + e.getMessage());
+            return false;
+        }
+        // only drop journal records once the snapshot covering them is in place
+        try {
+            journal.reset();
+        } catch (IOException e) {
+            System.err.println("Failed to reset journal: " + e.getMessage());
+        }
+        return true;
+    }
+
+    // Only account metadata is loaded eagerly. History stays in the store and each
+    // account's recent transactions are pulled in on its first statement request.
+    // Fails with IllegalStateException, leaving the files as they are, if there is a
+    // snapshot that cannot be read.
+    public void loadState() {
+        long started = System.nanoTime();
+        stateLock.writeLock().lock();
+        try {
+            long accountsSeq = 0, txnSeq = 0;
+            boolean migrate = false, linked = true, rolledUp = false;
+            dedup.clear();
+            prepared.clear();
+            synchronized (resolved) {
+                resolved.clear();
+            }
+            Arrays.fill(accruedThrough, NOT_ACCRUED);
+            aggregates.clear(null);
+            if (SNAPSHOT_FILE.exists()) {
+                try {
+                    Snapshot.State snap = Snapshot.read(SNAPSHOT_FILE, store());
+                    this.accounts = snap.accounts;
+                    for (Journal.Entry e : snap.idempotent) {
+                        dedup.complete(e);
+                        // older snapshots have no accrual dates; the keys still held give the recent ones
+                        if (e.idempotencyKey.startsWith(ACCRUAL_KEY)) noteAccrual(e.idempotencyKey);
+                    }
+                    for (Journal.Entry e : snap.prepared) prepared.put(e.idempotencyKey, e);
+                    for (Map.Entry<Integer, Long> a : snap.accrued.entrySet()) {
+                        accruedThrough[a.getKey()] = Math.max(accruedThrough[a.getKey()], a.getValue());
+                    }
+                    if (snap.days != null) {
+                        aggregates.clear(snap.days);
+                        rolledUp = true;
+                    }
+                    this.nextAccountNumber.set(snap.nextAccountNumber);
+                    accountsSeq = txnSeq = snap.journalSeq;
+                    linked = snap.linked;
+                } catch (IOException e) {
+                    // the journal alone holds only what came after the snapshot: new accounts would
+                    // reuse numbers and the next checkpoint would make the loss permanent
+                    throw new IllegalStateException("Snapshot " + SNAPSHOT_FILE + " cannot be read (" + e.getMessage()
+                            + "); restore it from a backup before starting the bank", e);
+                }
+            } else if (ACCOUNTS_FILE.exists() || TXN_FILE.exists()) {
+                long[] seqs = loadLegacySnapshots();
+                accountsSeq = seqs[0];
+                txnSeq = seqs[1];
+                migrate = true;
+                linked = false;
+            }
+            // replay the journal tail on top of the snapshot; each file skips what it already holds
+            final long accSeq = accountsSeq, histSeq = txnSeq;
+            try {
+                Journal j = journal();
+                j.replay(Math.min(accSeq, histSeq), e -> {
+                    apply(e, e.seq > accSeq, false, e.seq > histSeq);
+                    if (e.seq > histSeq) aggregates.roll(e);
+                });
+                j.advanceTo(Math.max(accSeq, histSeq));
+            } catch (IOException e) {
+                System.err.println("Failed to replay journal: " + e.getMessage());
+            }
+            // whatever was loaded and replayed becomes each account's first committed version
+            versions.reset(journal == null ? 0 : journal.lastSequence(), accounts);
+            aggregates.reset(journal == null ? 0 : journal.lastSequence(), accounts);
+            // snapshots from before daily rollups were kept get one pass over the history
+            if (!rolledUp && store != null) aggregates.rebuildDays(store);
+            // history from before per-account links existed needs one full pass; checkpoint so it is the last
+            if (!linked && store != null) {
+                relinkHistory();
+                if (checkpoint() && migrate) {
+                    // one-time move off Java serialization: retire the old files now the binary snapshot has them
+                    ACCOUNTS_FILE.renameTo(new File(ACCOUNTS_FILE.getPath() + ".migrated"));
+                    TXN_FILE.renameTo(new File(TXN_FILE.getPath() + ".migrated"));
+                }
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        loadMillis = (System.nanoTime() - started) / 1_000_000L;
+    }
+
+    // Wall-clock time the last loadState() took, in milliseconds
+    public long getLoadTimeMillis() { return loadMillis; }
+
+    // Rebuilds every prev link and tail pointer with one forward scan of the store
+    private void relinkHistory() {
+        accounts.forEach(a -> a.setLastTransaction(-1));
+        for (long i = 0, n = store.size(); i < n; i++) {
+            Account a = accounts.get(store.account(i));
+            if (a == null) continue;
+            store.setPrev(i, a.getLastTransaction());
+            a.setLastTransaction(i);
         }
     }
 
+    // Reads the ObjectOutputStream files written before the binary snapshot format.
+    // Returns the journal sequence each one covers, as {accounts, transactions}.
     @SuppressWarnings("unchecked")
-    public synchronized void loadState() {
+    private long[] loadLegacySnapshots() {
+        long[] seqs = new long[2];
         if (ACCOUNTS_FILE.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(ACCOUNTS_FILE))) {
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(ACCOUNTS_FILE)))) {
                 Object obj = ois.readObject();
                 if (obj instanceof Map) {
-                    this.accounts = (Map<Integer, Account>) obj;
-                    this.nextAccountNumber = ois.readInt();
+                    AccountTable table = new AccountTable();
+                    for (Account a : ((Map<Integer, Account>) obj).values()) table.put(a);
+                    this.accounts = table;
+                    this.nextAccountNumber.set(ois.readInt());
+                    seqs[0] = readSnapshotSeq(ois);
                 }
             } catch (Exception e) {
                 System.err.println("Failed to load accounts: " + e.getMessage());
             }
         }
         if (TXN_FILE.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(TXN_FILE))) {
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(TXN_FILE)))) {
                 Object obj = ois.readObject();
                 if (obj instanceof List) {
-                    this.transactions = (List<Transaction>) obj;
+                    TransactionStore st = store();
+                    st.truncate(0);
+                    // prev links are filled in by relinkHistory() once everything is loaded
+                    for (Transaction t : (List<Transaction>) obj) {
+                        st.append(t.getAccountNumber(), t.getType(), t.getAmount(), t.getCounterparty(),
+                                Transaction.toEpochMilli(t.getTimestamp()), t.isOpening(), -1);
+                    }
+                    seqs[1] = readSnapshotSeq(ois);
                 }
             } catch (Exception e) {
                 System.err.println("Failed to load transactions: " + e.getMessage());
             }
         }
-        // reattach transactions into accounts (in case we loaded things)
-        for (Transaction t : transactions) {
-            Account a = accounts.get(t.getAccountNumber());
-            if (a != null) a.addTransaction(t);
+        return seqs;
+    }
+
+    // Snapshots written before the journal existed end without a sequence number
+    private static long readSnapshotSeq(ObjectInputStream ois) throws IOException {
+        try {
+            return ois.readLong();
+        } catch (EOFException e) {
+            return 0;
+        }
+    }
+
+    // Flushes pending journal and audit writes and releases the files. Does not
+    // checkpoint: anything since the last saveState() is replayed on the next load.
+    public void close() throws IOException {
+        stateLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (replicator != null) {
+                    replicator.close();
+                    replicator = null;
+                }
+                if (journal == null) {
+                    // an open that failed part way may still hold the directory
+                    if (lockChannel != null) lockChannel.close();
+                    lockChannel = null;
+                    return;
+                }
+                journal.close();
+                audit.close();
+                store.close();
+                lockChannel.close();
+                lockChannel = null;
+                try {
+                    Runtime.getRuntime().removeShutdownHook(auditDrainHook);
+                } catch (IllegalStateException alreadyShuttingDown) {
+                }
+                journal = null;
+                audit = null;
+                store = null;
+                metrics.stopDump();
+                Metrics.unregister(metricsName);
+                metricsName = null;
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    private TransactionStore store() throws IOException {
+        journal();
+        return store;
+    }
+
+    private Journal journal() throws IOException {
+        Journal j = journal;
+        if (j == null) {
+            synchronized (this) {
+                if (journal == null) {
+                    lockDataDir();
+                    AuditLog a = new AuditLog(AUDIT_FILE, AUDIT_RING, AuditLog.Overflow.BLOCK);
+                    auditDrainHook = new Thread(() -> {
+                        try {
+                            a.close();
+                        } catch (IOException e) {
+                            System.err.println("Failed to close audit log: " + e.getMessage());
+                        }
+                    }, "audit-drain");
+                    Runtime.getRuntime().addShutdownHook(auditDrainHook);
+                    audit = a;
+                    store = new TransactionStore(TXN_STORE_DIR);
+                    Journal nj = new Journal(JOURNAL_FILE);
+                    // replayed entries are read through replay(), not append(), so they are not re-audited
+                    // followers are only sent what is on disk here; see Replication
+                    nj.setDurableListener(seq -> {
+                        Replication.Leader r = replicator;
+                        if (r != null) r.durable(seq);
+                    });
+                    nj.setAppendListener(e -> {
+                        versions.publish(e, accounts);
+                        aggregates.publish(e, accounts);
+                        Replication.Leader r = replicator;
+                        if (r != null) r.publish(e);
+                        long started = System.nanoTime();
+                        a.publish(e);
+                        metrics.recordPhase(Metrics.Phase.AUDIT, started);
+                    });
+                    journal = nj;
+                    metricsName = metrics.register(name, TXN_STORE_DIR.getParentFile());
+                }
+                j = journal;
+            }
+        }
+        return j;
+    }
+
+    // A data directory has one owner at a time, across processes: a second Bank opening it
+    // would cut the journal's tail, truncate and replay the store and rotate the audit log
+    // under the first. Thrown unchecked so loadState does not take it for a damaged snapshot.
+    private void lockDataDir() throws IOException {
+        if (lockChannel != null) return; // ours already, from an open that failed part way
+        FileChannel ch = FileChannel.open(LOCK_FILE.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = ch.tryLock();
+        } catch (OverlappingFileLockException heldInThisProcess) {
+            lock = null;
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        if (lock == null) {
+            ch.close();
+            throw new IllegalStateException("Data directory " + LOCK_FILE.getParentFile() + " is in use by another bank");
+        }
+        lockChannel = ch; // closing the channel releases the lock
+    }
+
+    // Write-ahead: the journal record is appended before the change becomes visible.
+    // The caller holds the stripe lock of every account involved, so per-account
+    // journal order always matches the order changes were applied in memory.
+    // Returns the journal sequence number the caller must wait on before reporting success.
+    private long commit(Journal.Op op, int account, int counterparty, long amount,
+                        String holderName, String governmentId, String idempotencyKey) throws BankException {
+        return commit(op, account, counterparty, amount, holderName, governmentId, idempotencyKey, false);
+    }
+
+    // Commits an operation whose debit side was already taken with Account.tryDebit.
+    // The reservation is what enforces MIN_BALANCE, so it is handed back if the
+    // journal write fails.
+    private long commitDebited(Account debited, long amount, Journal.Op op, int account, int counterparty,
+                               String idempotencyKey) throws BankException {
+        try {
+            return commit(op, account, counterparty, amount, null, null, idempotencyKey, true);
+        } catch (BankException ex) {
+            debited.credit(amount);
+            throw ex;
+        }
+    }
+
+    // Journals then applies one operation. A journal stopped by a failed write refuses
+    // the append, so from then on nothing more is applied in memory.
+    private long commit(Journal.Op op, int account, int counterparty, long amount,
+                        String holderName, String governmentId, String idempotencyKey,
+                        boolean debited) throws BankException {
+        Journal.Entry e;
+        try {
+            Journal j = journal();
+            long ts = Transaction.toEpochMilli(LocalDateTime.now());
+            long started = System.nanoTime();
+            e = j.append(op, ts, account, counterparty, amount, holderName, governmentId, idempotencyKey);
+            metrics.recordPhase(Metrics.Phase.JOURNAL_APPEND, started);
+            if (j.size() > CHECKPOINT_BYTES) checkpointDue = true;
+        } catch (IOException ex) {
+            throw new BankException("Failed to persist operation: " + ex.getMessage());
+        }
+        apply(e, true, debited, true);
+        return e.seq;
+    }
+
+    // Claims an idempotency key before any lock is taken, since it may wait for an
+    // earlier attempt with the same key to finish. Null when the caller sent no key.
+    private IdempotencyCache.Slot claim(String idempotencyKey) throws BankException {
+        if (idempotencyKey == null) return null;
+        IdempotencyCache.validate(idempotencyKey);
+        if (idempotencyKey.startsWith(ACCRUAL_KEY)) {
+            throw new BankException("Idempotency keys starting with " + ACCRUAL_KEY + " are reserved");
+        }
+        return dedup.claim(idempotencyKey);
+    }
+
+    // A repeat of a committed request: checks it asks for the same thing, then waits for
+    // the original record to be durable just as the original caller did
+    private Journal.Entry retried(IdempotencyCache.Slot claim, Journal.Op op, int account, int counterparty,
+                                  long amount, String holderName, String governmentId) throws BankException {
+        Journal.Entry e = claim.entry();
+        boolean same = e.op == op && e.amount == amount && (op == Journal.Op.CREATE
+                ? Objects.equals(e.holderName, holderName) && Objects.equals(e.governmentId, governmentId)
+                : e.account == account && e.counterparty == counterparty);
+        if (!same) throw new BankException("Idempotency key " + claim.key + " was already used for a different request");
+        afterCommit(e.seq);
+        return e;
+    }
+
+    // Called with no locks held so other operations can join the same group-commit
+    // batch, and so a due checkpoint can take the exclusive state lock.
+    private void afterCommit(long seq) throws BankException {
+        long started = System.nanoTime();
+        try {
+            journal.awaitDurable(seq);
+            metrics.recordPhase(Metrics.Phase.DURABLE_WAIT, started);
+        } catch (IOException ex) {
+            throw new BankException("Failed to persist operation: " + ex.getMessage());
+        }
+        Replication.Leader r = replicator;
+        if (r != null) {
+            started = System.nanoTime();
+            r.awaitReplicated(seq);
+            metrics.recordPhase(Metrics.Phase.REPLICATION_WAIT, started);
+        }
+        if (checkpointDue) saveState();
+    }
+
+    // Applies one journal entry to in-memory state; shared by live commits and startup replay.
+    // 'debited' means the debit side was already reserved by the live caller.
+    private void apply(Journal.Entry e, boolean balances, boolean debited, boolean history) {
+        if (balances && e.idempotencyKey != null && !e.op.isTwoPhase()) {
+            dedup.complete(e);
+            if (e.idempotencyKey.startsWith(ACCRUAL_KEY)) noteAccrual(e.idempotencyKey);
+        }
+        switch (e.op) {
+            case CREATE:
+                if (balances) {
+                    Account created = new Account(e.account, e.holderName, e.governmentId, e.amount);
+                    created.resetCommitted(e.seq);
+                    accounts.put(created);
+                    nextAccountNumber.accumulateAndGet(e.account + 1, Math::max);
+                }
+                if (history) record(e.account, Transaction.Type.DEPOSIT, e.amount, 0, e.timestamp, true);
+                break;
+            case DEPOSIT:
+                if (balances) accounts.get(e.account).credit(e.amount);
+                if (history) record(e.account, Transaction.Type.DEPOSIT, e.amount, 0, e.timestamp, false);
+                break;
+            case WITHDRAW:
+                if (balances && !debited) accounts.get(e.account).debit(e.amount);
+                if (history) record(e.account, Transaction.Type.WITHDRAW, e.amount, 0, e.timestamp, false);
+                break;
+            case TRANSFER:
+                if (balances) {
+                    if (!debited) accounts.get(e.account).debit(e.amount);
+                    accounts.get(e.counterparty).credit(e.amount);
+                }
+                if (history) {
+                    record(e.account, Transaction.Type.TRANSFER_OUT, e.amount, e.counterparty, e.timestamp, false);
+                    record(e.counterparty, Transaction.Type.TRANSFER_IN, e.amount, e.account, e.timestamp, false);
+                }
+                break;
+            // one shard's side of a cross-shard transfer: the payer's funds are held at prepare
+            // and the payee credited at commit; each side records its own history at commit
+            case PREPARE_OUT:
+                if (balances) {
+                    if (!debited) accounts.get(e.account).debit(e.amount);
+                    prepared.put(e.idempotencyKey, e);
+                    remember(e.idempotencyKey, null);
+                }
+                break;
+            case PREPARE_IN:
+                if (balances) {
+                    prepared.put(e.idempotencyKey, e);
+                    remember(e.idempotencyKey, null);
+                }
+                break;
+            case COMMIT_OUT:
+                if (balances) {
+                    prepared.remove(e.idempotencyKey);
+                    remember(e.idempotencyKey, true);
+                }
+                if (history) record(e.account, Transaction.Type.TRANSFER_OUT, e.amount, e.counterparty, e.timestamp, false);
+                break;
+            case COMMIT_IN:
+                if (balances) {
+                    accounts.get(e.account).credit(e.amount);
+                    prepared.remove(e.idempotencyKey);
+                    remember(e.idempotencyKey, true);
+                }
+                if (history) record(e.account, Transaction.Type.TRANSFER_IN, e.amount, e.counterparty, e.timestamp, false);
+                break;
+            case ABORT_OUT:
+                if (balances) {
+                    accounts.get(e.account).credit(e.amount);
+                    prepared.remove(e.idempotencyKey);
+                    remember(e.idempotencyKey, false);
+                }
+                break;
+            case ABORT_IN:
+                if (balances) {
+                    prepared.remove(e.idempotencyKey);
+                    remember(e.idempotencyKey, false);
+                }
+                break;
         }
     }
 
+    // The journal record is already written, so a failure here cannot be reported as a
+    // failed operation; it surfaces unchecked and the history is rebuilt on the next replay.
+    private void record(int account, Transaction.Type type, long amount, int counterparty, long timestamp,
+                        boolean opening) {
+        Account a = accounts.get(account);
+        long index;
+        try {
+            index = store.append(account, type, amount, counterparty, timestamp, opening, a.getLastTransaction());
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to record transaction", ex);
+        }
+        a.addTransaction(index);
+    }
+
     // ---------------- Utilities ----------------
+    private static int stripeIndex(int accountNumber) {
+        return accountNumber & (LOCK_STRIPES - 1);
+    }
+
+    private ReentrantLock stripe(int accountNumber) {
+        return stripes[stripeIndex(accountNumber)];
+    }
+
     private Account findAccount(int accountNumber) throws AccountNotFoundException {
         Account acc = accounts.get(accountNumber);
         if (acc == null) throw new AccountNotFoundException("Account not found: " + accountNumber);
         return acc;
     }
-
-    private void writeAudit(String action, String message) {
-        String ts = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-        String line = ts + " | " + action + " | " + message + System.lineSeparator();
-        try (FileWriter fw = new FileWriter(AUDIT_FILE, true)) {
-            fw.write(line);
-        } catch (IOException e) {
-            System.err.println("Failed to write audit: " + e.getMessage());
-        }
-    }
 }
 
 // ---------------- Account class ----------------
 class Account implements Serializable {
     private static final long serialVersionUID = 1L;
+    // Older snapshots stored the balance as a double named "balance"; the long
+    // field is written under a new name so those streams still match this class.
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("accountNumber", int.class),
+            new ObjectStreamField("holderName", String.class),
+            new ObjectStreamField("governmentId", String.class),
+            new ObjectStreamField("balanceMinor", long.class),
+    };
+    private static final AtomicLongFieldUpdater<Account> BALANCE =
+            AtomicLongFieldUpdater.newUpdater(Account.class, "balance");
+
     private int accountNumber;
     private String holderName;
     private String governmentId; // KYC
-    private double balance;
+    private volatile long balance; // minor units; updated by CAS, read lock-free
+
+    // Index of the latest TransactionStore record for this account, -1 if none. Older
+    // records are reached through the store's prev links, so nothing else about the
+    // history has to be loaded at startup.
+    private transient volatile long lastTransaction = -1;
+
+    // Cache of the latest store indexes as a ring with the oldest at recentStart.
+    // Stays null until the first statement request walks the chain to fill it.
+    private transient long[] recent;
+    private transient int recentStart, recentCount;
+    private static final int RECENT_LIMIT = 100;
 
-    // transient to avoid duplication during serialization of full bank state
-    private transient Deque<Transaction> recentTransactions = new ArrayDeque<>();
-    private final int RECENT_LIMIT = 100;
+    // Every store index of this account in commit order, for paging and time-range
+    // queries. Built from the prev chain by the first such query, then kept current.
+    private transient long[] history;
+    private transient int historyCount;
 
-    public Account(int accNo, String name, String govId, double initBalance) {
+    // Committed balances for read snapshots, newest first (see ReadSnapshot). Unlike
+    // 'balance' this never shows a debit that is reserved but not yet journaled.
+    private transient volatile ReadSnapshot.Version committed;
+
+    public Account(int accNo, String name, String govId, long initBalance) {
         this.accountNumber = accNo;
         this.holderName = name;
         this.governmentId = govId;
         this.balance = initBalance;
-        this.recentTransactions = new ArrayDeque<>();
+        this.committed = new ReadSnapshot.Version(0, initBalance, null);
     }
 
     public int getAccountNumber() { return accountNumber; }
     public String getHolderName() { return holderName; }
     public String getGovernmentId() { return governmentId; }
-    public double getBalance() { return balance; }
+    public long getBalance() { return balance; }
+
+    public void credit(long amount) {
+        BALANCE.addAndGet(this, amount);
+    }
+
+    // Unconditional debit, used when replaying operations that were already checked
+    public void debit(long amount) {
+        BALANCE.addAndGet(this, -amount);
+    }
+
+    // Newest committed version at or before seq, or null if the account is younger
+    ReadSnapshot.Version committedAt(long seq) {
+        ReadSnapshot.Version v = committed;
+        while (v != null && v.seq > seq) v = v.older;
+        return v;
+    }
+
+    // Only ReadSnapshot.Registry calls these, under its monitor
+    void commitVersion(long seq, long delta, long oldestOpen) {
+        ReadSnapshot.Version v = new ReadSnapshot.Version(seq, committed.balance + delta, committed);
+        v.trim(oldestOpen);
+        committed = v;
+    }
+
+    void resetCommitted(long seq) {
+        committed = new ReadSnapshot.Version(seq, balance, null);
+    }
 
-    public synchronized void credit(double amount) {
-        this.balance += amount;
+    // Takes amount only if the balance stays at or above floor; safe against concurrent debits
+    public boolean tryDebit(long amount, long floor) {
+        while (true) {
+            long cur = balance;
+            long next = cur - amount;
+            if (next < floor) return false;
+            if (BALANCE.compareAndSet(this, cur, next)) return true;
+        }
+    }
+
+    public long getLastTransaction() { return lastTransaction; }
+
+    // Restores the tail pointer from a snapshot or a history relink
+    void setLastTransaction(long storeIndex) { this.lastTransaction = storeIndex; }
+
+    public synchronized void addTransaction(long storeIndex) {
+        lastTransaction = storeIndex;
+        if (recent != null) pushRecent(storeIndex);
+        if (history != null) {
+            if (historyCount == history.length) history = Arrays.copyOf(history, historyCount * 2);
+            history[historyCount++] = storeIndex;
+        }
     }
-    public synchronized void debit(double amount) {
-        this.balance -= amount;
+
+    public synchronized int getTransactionCount(TransactionStore store) {
+        loadHistory(store);
+        return historyCount;
+    }
+
+    // Store indexes at history positions [from, to), oldest first
+    public synchronized long[] getHistoryIndexes(int from, int to, TransactionStore store) {
+        loadHistory(store);
+        from = Math.max(0, from);
+        to = Math.min(to, historyCount);
+        return from >= to ? new long[0] : Arrays.copyOfRange(history, from, to);
     }
 
-    public synchronized void addTransaction(Transaction t) {
-        if (recentTransactions == null) recentTransactions = new ArrayDeque<>();
-        recentTransactions.addFirst(t);
-        while (recentTransactions.size() > RECENT_LIMIT) recentTransactions.removeLast();
+    // First history position whose timestamp is at or after epochMillis; history is
+    // in commit order, which for one account is timestamp order, so this is a binary search
+    public synchronized int historyPositionAt(long epochMillis, TransactionStore store) {
+        loadHistory(store);
+        int lo = 0, hi = historyCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (store.timestamp(history[mid]) < epochMillis) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
     }
 
-    public synchronized List<Transaction> getRecentTransactions(int n) {
-        List<Transaction> out = new ArrayList<>();
-        int i = 0;
-        for (Transaction t : recentTransactions) {
-            if (i++ >= n) break;
-            out.add(t);
+    private void loadHistory(TransactionStore store) {
+        if (history != null) return;
+        long[] h = new long[16];
+        int n = 0;
+        for (long i = lastTransaction; i >= 0; i = store.prev(i)) {
+            if (n == h.length) h = Arrays.copyOf(h, n * 2);
+            h[n++] = i;
+        }
+        // the chain runs newest to oldest
+        for (int a = 0, b = n - 1; a < b; a++, b--) {
+            long t = h[a];
+            h[a] = h[b];
+            h[b] = t;
         }
+        history = h;
+        historyCount = n;
+    }
+
+    // Store indexes of up to n latest transactions, newest first
+    public synchronized long[] getRecentTransactionIndexes(int n, TransactionStore store) {
+        if (recent == null) loadRecent(store);
+        int k = Math.max(0, Math.min(n, recentCount));
+        long[] out = new long[k];
+        for (int i = 0; i < k; i++) out[i] = recent[(recentStart + recentCount - 1 - i) % recent.length];
         return out;
     }
 
+    private void loadRecent(TransactionStore store) {
+        long[] chain = new long[RECENT_LIMIT];
+        int k = 0;
+        for (long i = lastTransaction; i >= 0 && k < RECENT_LIMIT; i = store.prev(i)) chain[k++] = i;
+        recent = new long[4];
+        while (k > 0) pushRecent(chain[--k]);
+    }
+
+    // The ring starts small and doubles up to RECENT_LIMIT, so quiet accounts stay cheap
+    private void pushRecent(long storeIndex) {
+        if (recentCount == recent.length && recent.length < RECENT_LIMIT) {
+            long[] bigger = new long[Math.min(RECENT_LIMIT, recent.length * 2)];
+            for (int i = 0; i < recentCount; i++) bigger[i] = recent[(recentStart + i) % recent.length];
+            recent = bigger;
+            recentStart = 0;
+        }
+        if (recentCount < recent.length) {
+            recent[(recentStart + recentCount++) % recent.length] = storeIndex;
+        } else {
+            recent[recentStart] = storeIndex;
+            recentStart = (recentStart + 1) % recent.length;
+        }
+    }
+
     @Override
     public String toString() {
-        return String.format("Acc[%d] %s Bal:%.2f", accountNumber, holderName, balance);
+        return String.format("Acc[%d] %s Bal:%s", accountNumber, holderName, Money.format(balance));
+    }
+
+    private void writeObject(ObjectOutputStream oos) throws IOException {
+        ObjectOutputStream.PutField f = oos.putFields();
+        f.put("accountNumber", accountNumber);
+        f.put("holderName", holderName);
+        f.put("governmentId", governmentId);
+        f.put("balanceMinor", balance);
+        oos.writeFields();
     }
 
-    // custom serialization to keep transient deque usable after deserialization
     private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
-        ois.defaultReadObject();
-        recentTransactions = new ArrayDeque<>();
+        ObjectInputStream.GetField f = ois.readFields();
+        accountNumber = f.get("accountNumber", 0);
+        holderName = (String) f.get("holderName", null);
+        governmentId = (String) f.get("governmentId", null);
+        balance = f.defaulted("balanceMinor") ? Money.fromDouble(f.get("balance", 0.0)) : f.get("balanceMinor", 0L);
+        lastTransaction = -1;
     }
 }
 
 // ---------------- Transaction class ----------------
 class Transaction implements Serializable {
     private static final long serialVersionUID = 1L;
+    // see Account: "amount" used to be a double, the long is written as "amountMinor"
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("accountNumber", int.class),
+            new ObjectStreamField("type", Type.class),
+            new ObjectStreamField("amountMinor", long.class),
+            new ObjectStreamField("note", String.class),
+            new ObjectStreamField("timestamp", LocalDateTime.class),
+    };
     public enum Type { DEPOSIT, WITHDRAW, TRANSFER_IN, TRANSFER_OUT }
 
+    // History is stored as columns (see TransactionStore); instances are built on read
     private int accountNumber;
     private Type type;
-    private double amount;
-    private String note;
+    private long amount; // minor units
+    private int counterparty; // other side of a transfer, 0 otherwise
+    private boolean opening; // the initial deposit made when the account was created
     private LocalDateTime timestamp;
 
-    public Transaction(int accountNumber, Type type, double amount, String note) {
+    Transaction(int accountNumber, Type type, long amount, int counterparty, boolean opening, LocalDateTime timestamp) {
         this.accountNumber = accountNumber;
         this.type = type;
         this.amount = amount;
-        this.note = note;
-        this.timestamp = LocalDateTime.now();
+        this.counterparty = counterparty;
+        this.opening = opening;
+        this.timestamp = timestamp;
     }
 
     public int getAccountNumber() { return accountNumber; }
     public Type getType() { return type; }
-    public double getAmount() { return amount; }
-    public String getNote() { return note; }
+    public long getAmount() { return amount; }
+    public int getCounterparty() { return counterparty; }
+    public boolean isOpening() { return opening; }
     public LocalDateTime getTimestamp() { return timestamp; }
 
+    public String getNote() {
+        switch (type) {
+            case DEPOSIT: return opening ? "Initial deposit" : "Deposit";
+            case WITHDRAW: return "Withdraw";
+            case TRANSFER_OUT: return "Transfer to " + counterparty;
+            default: return "Transfer from " + counterparty;
+        }
+    }
+
+    static long toEpochMilli(LocalDateTime ts) {
+        return ts.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    static LocalDateTime fromEpochMilli(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
     @Override
     public String toString() {
-        return String.format("%s | %s | %.2f | %s", timestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME), type, amount, note);
+        return String.format("%s | %s | %s | %s", timestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME), type, Money.format(amount), getNote());
+    }
+
+    private void writeObject(ObjectOutputStream oos) throws IOException {
+        ObjectOutputStream.PutField f = oos.putFields();
+        f.put("accountNumber", accountNumber);
+        f.put("type", type);
+        f.put("amountMinor", amount);
+        f.put("note", getNote());
+        f.put("timestamp", timestamp);
+        oos.writeFields();
+    }
+
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = ois.readFields();
+        accountNumber = f.get("accountNumber", 0);
+        type = (Type) f.get("type", null);
+        amount = f.defaulted("amountMinor") ? Money.fromDouble(f.get("amount", 0.0)) : f.get("amountMinor", 0L);
+        timestamp = (LocalDateTime) f.get("timestamp", null);
+        // older streams only have the formatted note; recover the structured fields from it
+        String note = (String) f.get("note", null);
+        opening = "Initial deposit".equals(note);
+        if ((type == Type.TRANSFER_IN || type == Type.TRANSFER_OUT) && note != null) {
+            try {
+                counterparty = Integer.parseInt(note.substring(note.lastIndexOf(' ') + 1));
+            } catch (NumberFormatException e) {
+                counterparty = 0;
+            }
+        }
+    }
+}
+
+// ---------------- Money ----------------
+// Amounts are carried as long minor units (paise/cents) everywhere; these helpers
+// are the only place they are converted to and from decimal text.
+final class Money {
+    static final int SCALE = 2;
+
+    private Money() { }
+
+    // Parses "1234", "1234.5" or "1234.56"; anything finer than a minor unit is rejected
+    static long parse(String s) throws BankException {
+        try {
+            return new BigDecimal(s.trim()).setScale(SCALE).unscaledValue().longValueExact();
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new BankException("Invalid amount format");
+        }
+    }
+
+    static String format(long minor) {
+        return BigDecimal.valueOf(minor, SCALE).toPlainString();
+    }
+
+    // Only for reading values persisted before amounts became fixed-point
+    static long fromDouble(double major) {
+        return BigDecimal.valueOf(major).setScale(SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
     }
 }
 
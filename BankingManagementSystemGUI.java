@@ -1,14 +1,26 @@
 import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 public class BankingManagementSystemGUI extends JFrame {
 
     private Bank bank;
     private JPanel mainPanel;
+    private JLabel status;
+    private final List<JButton> navButtons = new ArrayList<>();
+    // Screens are built on first use and kept, so switching is just a CardLayout flip
+    private final Map<String, JPanel> screens = new HashMap<>();
+    private AccountTableModel accountModel;
 
     public BankingManagementSystemGUI() {
         bank = new Bank("Ved Bank");
-        bank.loadState();
 
         setTitle("Ved Bank - Management System");
         setSize(1000, 600);
@@ -23,6 +35,44 @@ public class BankingManagementSystemGUI extends JFrame {
         mainPanel = new JPanel(new CardLayout());
         mainPanel.add(new JLabel("Welcome to Ved Bank", SwingConstants.CENTER), "HOME");
         add(mainPanel, BorderLayout.CENTER);
+
+        // load off the EDT; navigation stays disabled until the accounts are in
+        navButtons.forEach(b -> b.setEnabled(false));
+        status.setText("Loading bank state...");
+        runInBackground(null, status, () -> {
+            bank.loadState();
+            return bank.getLoadTimeMillis();
+        }, ms -> {
+            status.setText("State loaded in " + ms + " ms");
+            navButtons.forEach(b -> b.setEnabled(true));
+        });
+    }
+
+    // ---------------- BACKGROUND EXECUTION ----------------
+    // Runs a bank call on a worker thread so the EDT never waits on locks or disk.
+    // trigger (may be null) is disabled while it runs; the callback and any error
+    // message are delivered back on the EDT.
+    private <T> void runInBackground(JButton trigger, JLabel msg, Callable<T> call, Consumer<T> onSuccess) {
+        if (trigger != null) trigger.setEnabled(false);
+        msg.setText("Working...");
+        new SwingWorker<T, Void>() {
+            @Override
+            protected T doInBackground() throws Exception {
+                return call.call();
+            }
+
+            @Override
+            protected void done() {
+                if (trigger != null) trigger.setEnabled(true);
+                try {
+                    onSuccess.accept(get());
+                } catch (ExecutionException ex) {
+                    msg.setText("Error: " + ex.getCause().getMessage());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }.execute();
     }
 
     // ---------------- HEADER ----------------
@@ -64,6 +114,7 @@ public class BankingManagementSystemGUI extends JFrame {
         btn.setBackground(Color.white);
 
         btn.addActionListener(e -> showScreen(command));
+        navButtons.add(btn);
 
         return btn;
     }
@@ -78,27 +129,41 @@ public class BankingManagementSystemGUI extends JFrame {
         foot.setFont(new Font("Segoe UI", Font.PLAIN, 12));
         footer.add(foot);
 
+        status = new JLabel("");
+        status.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        footer.add(status);
+
         return footer;
     }
 
     // ---------------- MAIN SCREEN ROUTER ----------------
     private void showScreen(String screen) {
-        JPanel newPanel = switch (screen) {
-            case "CREATE" -> createAccountScreen();
-            case "DEPOSIT" -> depositScreen();
-            case "WITHDRAW" -> withdrawScreen();
-            case "TRANSFER" -> transferScreen();
-            case "BALANCE" -> balanceScreen();
-            case "STATEMENT" -> statementScreen();
-            case "LIST" -> listAccountsScreen();
-            case "EXIT" -> { bank.saveState(); System.exit(0); yield null; }
-            default -> new JPanel();
-        };
-
-        mainPanel.removeAll();
-        mainPanel.add(newPanel);
-        mainPanel.revalidate();
-        mainPanel.repaint();
+        if (screen.equals("EXIT")) {
+            navButtons.forEach(b -> b.setEnabled(false));
+            status.setText("Saving...");
+            runInBackground(null, status, () -> {
+                bank.saveState();
+                return null;
+            }, r -> System.exit(0));
+            return;
+        }
+        if (!screens.containsKey(screen)) {
+            JPanel newPanel = switch (screen) {
+                case "CREATE" -> createAccountScreen();
+                case "DEPOSIT" -> depositScreen();
+                case "WITHDRAW" -> withdrawScreen();
+                case "TRANSFER" -> transferScreen();
+                case "BALANCE" -> balanceScreen();
+                case "STATEMENT" -> statementScreen();
+                case "LIST" -> listAccountsScreen();
+                default -> new JPanel();
+            };
+            screens.put(screen, newPanel);
+            mainPanel.add(newPanel, screen);
+        }
+        // the list is the one screen whose contents go stale between visits
+        if (screen.equals("LIST")) accountModel.reload();
+        ((CardLayout) mainPanel.getLayout()).show(mainPanel, screen);
     }
 
     // ---------------- SCREENS ----------------
@@ -115,16 +180,10 @@ public class BankingManagementSystemGUI extends JFrame {
         JLabel msg = new JLabel("");
 
         create.addActionListener(e -> {
-            try {
-                Account acc = bank.createAccount(
-                        name.getText(),
-                        govId.getText(),
-                        Double.parseDouble(initDep.getText())
-                );
-                msg.setText("Account created: " + acc.getAccountNumber());
-            } catch (Exception ex) {
-                msg.setText("Error: " + ex.getMessage());
-            }
+            String n = name.getText(), id = govId.getText(), amount = initDep.getText();
+            runInBackground(create, msg,
+                    () -> bank.createAccount(n, id, Money.parse(amount)),
+                    acc -> msg.setText("Account created: " + acc.getAccountNumber()));
         });
 
         p.add(new JLabel("Full Name:"));
@@ -149,15 +208,11 @@ public class BankingManagementSystemGUI extends JFrame {
         JButton btn = new JButton("Deposit");
 
         btn.addActionListener(e -> {
-            try {
-                bank.deposit(
-                        Integer.parseInt(accNo.getText()),
-                        Double.parseDouble(amt.getText())
-                );
-                msg.setText("Deposit successful.");
-            } catch (Exception ex) {
-                msg.setText("Error: " + ex.getMessage());
-            }
+            String acc = accNo.getText(), amount = amt.getText();
+            runInBackground(btn, msg, () -> {
+                bank.deposit(Integer.parseInt(acc), Money.parse(amount));
+                return null;
+            }, r -> msg.setText("Deposit successful."));
         });
 
         p.add(new JLabel("Account Number:"));
@@ -180,15 +235,11 @@ public class BankingManagementSystemGUI extends JFrame {
         JButton btn = new JButton("Withdraw");
 
         btn.addActionListener(e -> {
-            try {
-                bank.withdraw(
-                        Integer.parseInt(accNo.getText()),
-                        Double.parseDouble(amt.getText())
-                );
-                msg.setText("Withdrawal successful.");
-            } catch (Exception ex) {
-                msg.setText("Error: " + ex.getMessage());
-            }
+            String acc = accNo.getText(), amount = amt.getText();
+            runInBackground(btn, msg, () -> {
+                bank.withdraw(Integer.parseInt(acc), Money.parse(amount));
+                return null;
+            }, r -> msg.setText("Withdrawal successful."));
         });
 
         p.add(new JLabel("Account Number:"));
@@ -212,16 +263,11 @@ public class BankingManagementSystemGUI extends JFrame {
         JButton btn = new JButton("Transfer");
 
         btn.addActionListener(e -> {
-            try {
-                bank.transfer(
-                        Integer.parseInt(from.getText()),
-                        Integer.parseInt(to.getText()),
-                        Double.parseDouble(amt.getText())
-                );
-                msg.setText("Transfer successful.");
-            } catch (Exception ex) {
-                msg.setText("Error: " + ex.getMessage());
-            }
+            String src = from.getText(), dst = to.getText(), amount = amt.getText();
+            runInBackground(btn, msg, () -> {
+                bank.transfer(Integer.parseInt(src), Integer.parseInt(dst), Money.parse(amount));
+                return null;
+            }, r -> msg.setText("Transfer successful."));
         });
 
         p.add(new JLabel("From Account:"));
@@ -244,13 +290,11 @@ public class BankingManagementSystemGUI extends JFrame {
         JButton btn = new JButton("Check Balance");
 
         btn.addActionListener(e -> {
-            try {
-                double bal = bank.getBalance(Integer.parseInt(accNo.getText()));
-                String name = bank.getName(Integer.parseInt(accNo.getText()));
-                msg.setText(name + " | Balance: " + bal);
-            } catch (Exception ex) {
-                msg.setText("Error: " + ex.getMessage());
-            }
+            String acc = accNo.getText();
+            runInBackground(btn, msg, () -> {
+                int n = Integer.parseInt(acc);
+                return bank.getName(n) + " | Balance: " + Money.format(bank.getBalance(n));
+            }, msg::setText);
         });
 
         p.add(new JLabel("Account Number:"));
@@ -269,22 +313,22 @@ public class BankingManagementSystemGUI extends JFrame {
         JTextArea area = new JTextArea();
         area.setEditable(false);
 
+        JLabel msg = new JLabel();
         btn.addActionListener(e -> {
-            try {
-                var list = bank.getMiniStatement(Integer.parseInt(accNo.getText()), 10);
-                area.setText("");
-                for (Transaction t : list) {
-                    area.append(t + "\n");
-                }
-            } catch (Exception ex) {
-                area.setText("Error: " + ex.getMessage());
-            }
+            String acc = accNo.getText();
+            runInBackground(btn, msg, () -> bank.getMiniStatement(Integer.parseInt(acc), 10), list -> {
+                msg.setText("");
+                StringBuilder sb = new StringBuilder();
+                for (Transaction t : list) sb.append(t).append("\n");
+                area.setText(sb.toString());
+            });
         });
 
-        JPanel top = new JPanel(new GridLayout(1, 3));
+        JPanel top = new JPanel(new GridLayout(1, 4));
         top.add(new JLabel("Account No:"));
         top.add(accNo);
         top.add(btn);
+        top.add(msg);
 
         p.add(top, BorderLayout.NORTH);
         p.add(new JScrollPane(area), BorderLayout.CENTER);
@@ -295,18 +339,212 @@ public class BankingManagementSystemGUI extends JFrame {
     private JPanel listAccountsScreen() {
         JPanel p = new JPanel(new BorderLayout());
 
-        JTextArea area = new JTextArea();
-        area.setEditable(false);
+        JLabel msg = new JLabel();
+        accountModel = new AccountTableModel(bank, msg);
+        JTable table = new JTable(accountModel);
+        table.setFillsViewportHeight(true);
+        // sorting happens in the model, over the whole bank, rather than in a RowSorter
+        // that would pull every row through getValueAt
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int col = table.columnAtPoint(e.getPoint());
+                if (col >= 0) accountModel.sortBy(col);
+            }
+        });
 
-        StringBuilder sb = new StringBuilder();
-        bank.listAllAccounts().forEach((k, v) -> sb.append(v).append("\n"));
-        area.setText(sb.toString());
+        JButton refresh = new JButton("Refresh");
+        refresh.addActionListener(e -> accountModel.reload());
+        JPanel top = new JPanel(new BorderLayout());
+        top.add(msg, BorderLayout.CENTER);
+        top.add(refresh, BorderLayout.EAST);
 
-        p.add(new JScrollPane(area), BorderLayout.CENTER);
+        p.add(top, BorderLayout.NORTH);
+        p.add(new JScrollPane(table), BorderLayout.CENTER);
 
         return p;
     }
 
+    // ---------------- ACCOUNT TABLE MODEL ----------------
+    // Virtual model for the account list. It holds only the display order as an
+    // int[] of account numbers; names and balances are fetched a page at a time,
+    // on a worker thread, when the JTable first asks for a row in that page, and
+    // only a bounded number of pages is kept. Until a page arrives its cells show
+    // a placeholder. Sorting builds a new order from one ReadSnapshot pass, also
+    // off the EDT.
+    private static final class AccountTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+        private static final String[] COLUMNS = {"Account No", "Holder", "Balance"};
+        private static final int PAGE = 200;
+        private static final int MAX_PAGES = 32;
+        private static final Object[] LOADING = {"...", "...", "..."};
+
+        private final Bank bank;
+        private final JLabel msg;
+        private int[] order = new int[0];
+        private int sortColumn = 0;
+        private boolean ascending = true;
+        private int generation; // only the latest reload or sort may install its order
+        private final Set<Integer> fetching = new HashSet<>();
+        private final Map<Integer, Object[][]> pages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Object[][]> eldest) {
+                return size() > MAX_PAGES;
+            }
+        };
+
+        AccountTableModel(Bank bank, JLabel msg) {
+            this.bank = bank;
+            this.msg = msg;
+        }
+
+        @Override public int getRowCount() { return order.length; }
+        @Override public int getColumnCount() { return COLUMNS.length; }
+        @Override public String getColumnName(int c) { return COLUMNS[c] + (c == sortColumn ? (ascending ? " ▲" : " ▼") : ""); }
+
+        @Override
+        public Object getValueAt(int row, int col) {
+            int page = row / PAGE;
+            Object[][] rows = pages.get(page);
+            if (rows == null) {
+                fetch(page);
+                return LOADING[col];
+            }
+            return rows[row % PAGE][col];
+        }
+
+        // Re-reads the account list in the current sort order and drops cached pages
+        void reload() {
+            rebuild(sortColumn, ascending);
+        }
+
+        // Clicking the sorted column again flips the direction
+        void sortBy(int col) {
+            rebuild(col, col == sortColumn ? !ascending : true);
+        }
+
+        private void rebuild(int col, boolean asc) {
+            msg.setText(col == 0 && asc ? "Loading accounts..." : "Sorting accounts...");
+            int gen = ++generation;
+            new SwingWorker<int[], Void>() {
+                @Override
+                protected int[] doInBackground() {
+                    return buildOrder(col, asc);
+                }
+
+                @Override
+                protected void done() {
+                    if (gen != generation) return;
+                    try {
+                        order = get();
+                        sortColumn = col;
+                        ascending = asc;
+                        pages.clear();
+                        fetching.clear();
+                        fireTableStructureChanged();
+                        msg.setText(order.length + " accounts");
+                    } catch (ExecutionException ex) {
+                        msg.setText("Error: " + ex.getCause().getMessage());
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }.execute();
+        }
+
+        // Account numbers plus the one column being sorted on, filled from a snapshot pass
+        private static final class SortKeys {
+            int n;
+            int[] numbers = new int[1024];
+            long[] balances;
+            List<String> names;
+
+            SortKeys(int col) {
+                if (col == 2) balances = new long[1024];
+                if (col == 1) names = new ArrayList<>();
+            }
+
+            void add(ReadSnapshot.AccountView v) {
+                if (n == numbers.length) {
+                    numbers = Arrays.copyOf(numbers, n * 2);
+                    if (balances != null) balances = Arrays.copyOf(balances, n * 2);
+                }
+                numbers[n] = v.getAccountNumber();
+                if (balances != null) balances[n] = v.getBalance();
+                if (names != null) names.add(v.getHolderName());
+                n++;
+            }
+        }
+
+        // One snapshot pass collects the sort key of every account; only the key column is kept
+        private int[] buildOrder(int col, boolean asc) {
+            SortKeys keys = new SortKeys(col);
+            try (ReadSnapshot snap = bank.snapshot()) {
+                snap.forEach(keys::add);
+            }
+            int n = keys.n;
+            int[] numbers = Arrays.copyOf(keys.numbers, n);
+            long[] balances = keys.balances;
+            List<String> names = keys.names;
+            if (col != 0) {
+                // the snapshot lists accounts by number, so the stable sort keeps ties in number order
+                Integer[] idx = new Integer[n];
+                for (int i = 0; i < n; i++) idx[i] = i;
+                long[] bal = balances;
+                Comparator<Integer> cmp = col == 2
+                        ? Comparator.comparingLong(i -> bal[i])
+                        : Comparator.comparing(names::get, String.CASE_INSENSITIVE_ORDER);
+                Arrays.sort(idx, asc ? cmp : cmp.reversed());
+                int[] sorted = new int[n];
+                for (int i = 0; i < n; i++) sorted[i] = numbers[idx[i]];
+                return sorted;
+            }
+            if (!asc) {
+                for (int i = 0, j = n - 1; i < j; i++, j--) {
+                    int t = numbers[i];
+                    numbers[i] = numbers[j];
+                    numbers[j] = t;
+                }
+            }
+            return numbers;
+        }
+
+        private void fetch(int page) {
+            if (!fetching.add(page)) return;
+            int[] current = order;
+            int from = page * PAGE, to = Math.min(current.length, from + PAGE);
+            new SwingWorker<Object[][], Void>() {
+                @Override
+                protected Object[][] doInBackground() {
+                    Object[][] rows = new Object[to - from][];
+                    for (int i = from; i < to; i++) {
+                        int acc = current[i];
+                        try {
+                            rows[i - from] = new Object[]{acc, bank.getName(acc), Money.format(bank.getBalance(acc))};
+                        } catch (BankException e) {
+                            rows[i - from] = new Object[]{acc, "?", "?"};
+                        }
+                    }
+                    return rows;
+                }
+
+                @Override
+                protected void done() {
+                    fetching.remove(page);
+                    if (current != order) return; // reloaded or re-sorted meanwhile
+                    try {
+                        pages.put(page, get());
+                        fireTableRowsUpdated(from, to - 1);
+                    } catch (ExecutionException ex) {
+                        msg.setText("Error: " + ex.getCause().getMessage());
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }.execute();
+        }
+    }
+
     // ---------------- MAIN ----------------
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> new BankingManagementSystemGUI().setVisible(true));
@@ -0,0 +1,77 @@
+import java.util.*;
+
+// ---------------- Batch class ----------------
+// Input and output types for Bank.applyBatch: a list of deposits, withdrawals and
+// transfers that is validated, journaled and made durable as one unit.
+final class Batch {
+    public enum Mode {
+        ATOMIC, // any rejected op aborts the whole batch
+        PER_OP  // rejected ops are skipped, the rest are applied
+    }
+
+    public enum Status { APPLIED, REJECTED, NOT_APPLIED }
+
+    // One posting in a batch
+    static final class Op {
+        final Journal.Op kind;
+        final int account;      // the account credited (deposit) or debited (withdraw, transfer)
+        final int counterparty; // transfer destination, 0 otherwise
+        final long amount;      // minor units
+
+        private Op(Journal.Op kind, int account, int counterparty, long amount) {
+            this.kind = kind;
+            this.account = account;
+            this.counterparty = counterparty;
+            this.amount = amount;
+        }
+
+        static Op deposit(int account, long amount) { return new Op(Journal.Op.DEPOSIT, account, 0, amount); }
+        static Op withdraw(int account, long amount) { return new Op(Journal.Op.WITHDRAW, account, 0, amount); }
+        static Op transfer(int from, int to, long amount) { return new Op(Journal.Op.TRANSFER, from, to, amount); }
+
+        @Override
+        public String toString() {
+            return kind == Journal.Op.TRANSFER
+                    ? String.format("TRANSFER %d->%d %s", account, counterparty, Money.format(amount))
+                    : String.format("%s %d %s", kind, account, Money.format(amount));
+        }
+    }
+
+    // Outcome of every op, in input order
+    static final class Result {
+        private final Status[] status;
+        private final BankException[] errors;
+        private int applied;
+
+        Result(int size) {
+            this.status = new Status[size];
+            this.errors = new BankException[size];
+            Arrays.fill(status, Status.NOT_APPLIED);
+        }
+
+        void reject(int i, BankException e) {
+            status[i] = Status.REJECTED;
+            errors[i] = e;
+        }
+
+        void markApplied(int i) {
+            status[i] = Status.APPLIED;
+            applied++;
+        }
+
+        public int size() { return status.length; }
+        public Status status(int i) { return status[i]; }
+        public BankException error(int i) { return errors[i]; } // set only for REJECTED
+        public int appliedCount() { return applied; }
+        public boolean allApplied() { return applied == status.length; }
+
+        @Override
+        public String toString() {
+            int rejected = 0;
+            for (Status s : status) if (s == Status.REJECTED) rejected++;
+            return String.format("applied=%d rejected=%d not_applied=%d", applied, rejected, status.length - applied - rejected);
+        }
+    }
+
+    private Batch() { }
+}
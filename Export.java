@@ -0,0 +1,339 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.function.Consumer;
+
+// ---------------- Export class ----------------
+// Streaming CSV / JSON-lines export of transaction history and audit.log for
+// regulators. Rows are formatted straight from the TransactionStore columns
+// (or the raw audit bytes) into one reusable direct buffer, which is drained
+// to the output channel whenever it fills, so memory stays constant and no
+// String or Transaction is built per row.
+//
+// Every export is resumable. A Cursor pairs the position of the next source row
+// (a history position, store index or byte offset into the audit trail across
+// all its segments, depending on the scope) with the number of output bytes
+// that hold complete rows. After an interruption, truncate the output to
+// Cursor.bytes and export again from Cursor.position; the command-line mode
+// keeps the cursor in <out>.cursor and does this itself with --resume.
+//
+// Transaction timestamps are written in UTC with a trailing Z. Audit timestamps
+// are copied as logged, in the bank's local time. Amounts are decimal strings
+// with two places, quoted in JSON so no consumer rounds them through a double.
+final class Export {
+    public enum Format { CSV, JSONL }
+
+    private Export() { }
+
+    // Where an export stopped: next source position and bytes of complete output rows
+    static final class Cursor {
+        final long position;
+        final long bytes;
+
+        Cursor(long position, long bytes) {
+            this.position = position;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() { return position + " " + bytes; }
+    }
+
+    // Formats rows into a buffer and drains it to a channel. Not thread-safe.
+    static final class Sink {
+        private static final int BUFFER = 64 * 1024;
+        private static final byte[][] TYPE_NAMES = new byte[Transaction.Type.values().length][];
+        static {
+            for (Transaction.Type t : Transaction.Type.values()) TYPE_NAMES[t.ordinal()] = ascii(t.name());
+        }
+        private static final byte[] TXN_CSV_HEADER = ascii("account,timestamp,type,amount,counterparty,opening\n");
+        private static final byte[] AUDIT_CSV_HEADER = ascii("timestamp,event,detail\n");
+
+        private final WritableByteChannel out;
+        private final Format format;
+        private final Consumer<Cursor> onDrain;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER);
+        private final byte[] digits = new byte[20];
+        private final byte[] date = new byte[10];
+        private long cachedDay = Long.MIN_VALUE;
+        private long drained;          // bytes handed to the channel
+        private long rowPosition;      // cursor after the last complete row
+        private long rowBytes;
+
+        // startBytes is the length of output already there when resuming, 0 otherwise.
+        // onDrain (may be null) sees the cursor each time buffered rows reach the channel.
+        Sink(WritableByteChannel out, Format format, long startBytes, Consumer<Cursor> onDrain) {
+            this.out = out;
+            this.format = format;
+            this.onDrain = onDrain;
+            this.drained = startBytes;
+            this.rowBytes = startBytes;
+        }
+
+        void transactionHeader() throws IOException {
+            if (format == Format.CSV) put(TXN_CSV_HEADER, 0, TXN_CSV_HEADER.length);
+        }
+
+        void auditHeader() throws IOException {
+            if (format == Format.CSV) put(AUDIT_CSV_HEADER, 0, AUDIT_CSV_HEADER.length);
+        }
+
+        // One transaction row read from the store's columns; next is the cursor position after it
+        void transaction(TransactionStore store, long index, long next) throws IOException {
+            boolean csv = format == Format.CSV;
+            if (!csv) putAscii("{\"account\":");
+            putLong(store.account(index));
+            putAscii(csv ? "," : ",\"timestamp\":\"");
+            putTimestamp(store.timestamp(index));
+            putAscii(csv ? "," : "\",\"type\":\"");
+            byte[] type = TYPE_NAMES[store.type(index).ordinal()];
+            put(type, 0, type.length);
+            putAscii(csv ? "," : "\",\"amount\":\"");
+            putAmount(store.amount(index));
+            putAscii(csv ? "," : "\",\"counterparty\":");
+            putLong(store.counterparty(index));
+            putAscii(csv ? "," : ",\"opening\":");
+            putAscii(store.isOpening(index) ? "true" : "false");
+            putAscii(csv ? "\n" : "}\n");
+            endRow(next);
+        }
+
+        // One audit.log line (without its line break) as "timestamp | EVENT | detail"
+        void auditLine(byte[] line, int off, int len, long next) throws IOException {
+            int end = off + len;
+            int sep1 = indexOf(line, off, end), sep2 = sep1 < 0 ? -1 : indexOf(line, sep1 + 3, end);
+            int tsEnd = sep1 < 0 ? end : sep1;
+            int evStart = sep1 < 0 ? end : sep1 + 3, evEnd = sep2 < 0 ? end : sep2;
+            int detStart = sep2 < 0 ? end : sep2 + 3;
+            if (format == Format.CSV) {
+                putQuoted(line, off, tsEnd);
+                putAscii(",");
+                putQuoted(line, evStart, evEnd);
+                putAscii(",");
+                putQuoted(line, detStart, end);
+                putAscii("\n");
+            } else {
+                putAscii("{\"timestamp\":\"");
+                putJson(line, off, tsEnd);
+                putAscii("\",\"event\":\"");
+                putJson(line, evStart, evEnd);
+                putAscii("\",\"detail\":\"");
+                putJson(line, detStart, end);
+                putAscii("\"}\n");
+            }
+            endRow(next);
+        }
+
+        // Drains what is left and returns where the export ended
+        Cursor finish() throws IOException {
+            drain();
+            return new Cursor(rowPosition, rowBytes);
+        }
+
+        void startAt(long position) { rowPosition = position; }
+
+        private void endRow(long next) {
+            rowPosition = next;
+            rowBytes = drained + buf.position();
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) drained += out.write(buf);
+            buf.clear();
+            if (onDrain != null) onDrain.accept(new Cursor(rowPosition, rowBytes));
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buf.remaining() < n) drain();
+        }
+
+        private void put(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ensure(1);
+                int n = Math.min(len, buf.remaining());
+                buf.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void putAscii(String s) throws IOException {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) buf.put((byte) s.charAt(i));
+        }
+
+        private void putLong(long v) throws IOException {
+            ensure(20);
+            if (v < 0) {
+                buf.put((byte) '-');
+                v = -v;
+            }
+            int n = 0;
+            do {
+                digits[n++] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v > 0);
+            while (n > 0) buf.put(digits[--n]);
+        }
+
+        // Minor units as a plain decimal with two places, like Money.format
+        private void putAmount(long minor) throws IOException {
+            ensure(24);
+            if (minor < 0) {
+                buf.put((byte) '-');
+                minor = -minor;
+            }
+            putLong(minor / 100);
+            buf.put((byte) '.');
+            buf.put((byte) ('0' + minor % 100 / 10));
+            buf.put((byte) ('0' + minor % 10));
+        }
+
+        // yyyy-MM-ddTHH:mm:ss.SSSZ in UTC; the date part is rebuilt only when the day changes
+        private void putTimestamp(long epochMillis) throws IOException {
+            long day = Math.floorDiv(epochMillis, 86_400_000L);
+            if (day != cachedDay) {
+                LocalDate d = LocalDate.ofEpochDay(day);
+                twoDigitsInto(date, 0, d.getYear() / 100);
+                twoDigitsInto(date, 2, d.getYear() % 100);
+                date[4] = '-';
+                twoDigitsInto(date, 5, d.getMonthValue());
+                date[7] = '-';
+                twoDigitsInto(date, 8, d.getDayOfMonth());
+                cachedDay = day;
+            }
+            int ms = (int) Math.floorMod(epochMillis, 86_400_000L);
+            ensure(24);
+            buf.put(date);
+            buf.put((byte) 'T');
+            putTwo(ms / 3_600_000);
+            buf.put((byte) ':');
+            putTwo(ms / 60_000 % 60);
+            buf.put((byte) ':');
+            putTwo(ms / 1000 % 60);
+            buf.put((byte) '.');
+            buf.put((byte) ('0' + ms % 1000 / 100));
+            putTwo(ms % 100);
+            buf.put((byte) 'Z');
+        }
+
+        private void putTwo(int v) {
+            buf.put((byte) ('0' + v / 10));
+            buf.put((byte) ('0' + v % 10));
+        }
+
+        private static void twoDigitsInto(byte[] b, int at, int v) {
+            b[at] = (byte) ('0' + v / 10);
+            b[at + 1] = (byte) ('0' + v % 10);
+        }
+
+        // CSV field, always quoted, with embedded quotes doubled
+        private void putQuoted(byte[] b, int from, int to) throws IOException {
+            ensure(1);
+            buf.put((byte) '"');
+            for (int i = from; i < to; i++) {
+                ensure(2);
+                if (b[i] == '"') buf.put((byte) '"');
+                buf.put(b[i]);
+            }
+            ensure(1);
+            buf.put((byte) '"');
+        }
+
+        // JSON string contents; UTF-8 multi-byte sequences pass through unchanged
+        private void putJson(byte[] b, int from, int to) throws IOException {
+            for (int i = from; i < to; i++) {
+                byte c = b[i];
+                ensure(6);
+                if (c == '"' || c == '\\') {
+                    buf.put((byte) '\\').put(c);
+                } else if (c >= 0 && c < 0x20) {
+                    buf.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0');
+                    buf.put(HEX[c >> 4]).put(HEX[c & 0xF]);
+                } else {
+                    buf.put(c);
+                }
+            }
+        }
+
+        private static final byte[] HEX = ascii("0123456789abcdef");
+
+        // Position of the next " | " separator, or -1
+        private static int indexOf(byte[] b, int from, int to) {
+            for (int i = from; i + 2 < to; i++) {
+                if (b[i] == ' ' && b[i + 1] == '|' && b[i + 2] == ' ') return i;
+            }
+            return -1;
+        }
+
+        private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+    }
+
+    // ---------------- Command line ----------------
+    // java Export <dataDir> <transactions|audit> <csv|jsonl> <outFile>
+    //             [--account N] [--from yyyy-MM-ddTHH:mm[:ss]] [--to ...] [--resume]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("usage: Export <dataDir> <transactions|audit> <csv|jsonl> <outFile>"
+                    + " [--account N] [--from ts] [--to ts] [--resume]");
+            System.exit(2);
+        }
+        File dataDir = new File(args[0]);
+        boolean audit = "audit".equals(args[1]);
+        Format format = Format.valueOf(args[2].toUpperCase());
+        File outFile = new File(args[3]);
+        int account = 0;
+        LocalDateTime from = null, to = null;
+        boolean resume = false;
+        for (int i = 4; i < args.length; i++) {
+            switch (args[i]) {
+                case "--account": account = Integer.parseInt(args[++i]); break;
+                case "--from": from = LocalDateTime.parse(args[++i]); break;
+                case "--to": to = LocalDateTime.parse(args[++i]); break;
+                case "--resume": resume = true; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        // the cursor file always describes complete rows already in outFile
+        File cursorFile = new File(outFile.getPath() + ".cursor");
+        Cursor start = new Cursor(0, 0);
+        if (resume && cursorFile.exists()) {
+            String[] f = new String(Files.readAllBytes(cursorFile.toPath()), StandardCharsets.US_ASCII).trim().split(" ");
+            start = new Cursor(Long.parseLong(f[0]), Long.parseLong(f[1]));
+            // rows the cursor counts never reached the disk; the only safe place to resume is the start
+            if (outFile.length() < start.bytes) start = new Cursor(0, 0);
+        }
+
+        Bank bank = new Bank("export", dataDir);
+        bank.loadState();
+        try (FileChannel ch = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ch.truncate(start.bytes);
+            ch.position(start.bytes);
+            Sink sink = new Sink(ch, format, start.bytes, c -> saveCursor(cursorFile, c));
+            Cursor end = audit
+                    ? bank.exportAudit(sink, start.position)
+                    : bank.exportTransactions(sink, account, from, to, start.position);
+            ch.force(true);
+            saveCursor(cursorFile, end);
+            System.out.println("Exported to " + outFile + ", cursor " + end);
+        } finally {
+            bank.close();
+        }
+    }
+
+    private static void saveCursor(File file, Cursor c) {
+        try {
+            Files.write(file.toPath(), c.toString().getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            System.err.println("Failed to save export cursor: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ---------------- IdempotencyCache class ----------------
+// Remembers which journal entry each client idempotency key produced, so a
+// retried request gets the original outcome instead of running again.
+//
+// The first request with a key claims it; a concurrent retry of the same key
+// waits for that attempt to finish. If it commits, both see its entry; if it
+// fails before reaching the journal the claim is dropped and the retry runs
+// the operation itself. Rejections are not remembered: they changed nothing,
+// so running the retry again is safe.
+//
+// Lookups are one ConcurrentHashMap probe. Completed keys also sit in a queue
+// in roughly commit order, and whoever completes a key trims the head once the
+// cache holds more than maxEntries or the oldest entry is older than ttlMillis.
+// The keys travel in the journal records and are written into snapshots, so
+// they survive a restart for as long as they would have stayed in memory.
+final class IdempotencyCache {
+    static final int DEFAULT_MAX_ENTRIES = 1 << 18;
+    static final long DEFAULT_TTL_MILLIS = 24L * 60 * 60 * 1000;
+    static final int MAX_KEY_LENGTH = 128;
+
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Slot> completed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+    private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+
+    // One key: pending while entry is null, then the entry its operation committed
+    static final class Slot {
+        final String key;
+        private volatile Journal.Entry entry;
+        private boolean abandoned;
+
+        Slot(String key) { this.key = key; }
+
+        Journal.Entry entry() { return entry; }
+        boolean isDone() { return entry != null; }
+
+        private synchronized void complete(Journal.Entry e) {
+            entry = e;
+            notifyAll();
+        }
+
+        private synchronized void abandon() {
+            abandoned = true;
+            notifyAll();
+        }
+
+        // The committed entry, or null if the attempt holding the claim gave up
+        private synchronized Journal.Entry await() {
+            boolean interrupted = false;
+            while (entry == null && !abandoned) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            return entry;
+        }
+    }
+
+    void configure(int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        if (ttlMillis < 1) throw new IllegalArgumentException("ttlMillis must be positive");
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        evict();
+    }
+
+    static void validate(String key) throws BankException {
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+            throw new BankException("Idempotency key must be 1.." + MAX_KEY_LENGTH + " characters");
+        }
+    }
+
+    // Returns a done slot if key already committed; otherwise a pending slot the caller
+    // now owns and must either pass to the commit (which completes it) or abandon().
+    Slot claim(String key) {
+        Slot mine = null;
+        while (true) {
+            Slot s = slots.get(key);
+            if (s == null) {
+                if (mine == null) mine = new Slot(key);
+                s = slots.putIfAbsent(key, mine);
+                if (s == null) return mine;
+            }
+            if (s.await() != null) return s;
+            // that attempt failed without committing; try to claim the key again
+        }
+    }
+
+    // Releases a claim whose operation did not commit; a no-op for done slots
+    void abandon(Slot s) {
+        if (s.isDone()) return;
+        slots.remove(s.key, s);
+        s.abandon();
+    }
+
+    // Records a committed keyed entry, from a live commit or from replay
+    void complete(Journal.Entry e) {
+        Slot s = slots.get(e.idempotencyKey);
+        if (s == null || s.isDone()) {
+            // replay, or a key reused after its earlier entry expired
+            s = new Slot(e.idempotencyKey);
+            slots.put(e.idempotencyKey, s);
+        }
+        s.complete(e);
+        completed.add(s);
+        completedCount.incrementAndGet();
+        evict();
+    }
+
+    // Live committed entries, oldest first, for writing into a snapshot
+    List<Journal.Entry> entries() {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        List<Journal.Entry> list = new ArrayList<>();
+        for (Slot s : completed) {
+            if (slots.get(s.key) == s && s.entry.timestamp >= cutoff) list.add(s.entry);
+        }
+        return list;
+    }
+
+    int size() { return completedCount.get(); }
+
+    void clear() {
+        slots.clear();
+        completed.clear();
+        completedCount.set(0);
+    }
+
+    // Only one thread trims at a time; the others carry on and leave it to that one
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            long cutoff = System.currentTimeMillis() - ttlMillis;
+            Slot head;
+            while ((head = completed.peek()) != null
+                    && (completedCount.get() > maxEntries || head.entry.timestamp < cutoff)) {
+                completed.poll();
+                completedCount.decrementAndGet();
+                slots.remove(head.key, head);
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
@@ -0,0 +1,538 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+// ---------------- Journal class ----------------
+// Append-only write-ahead log of bank mutations. Each record is framed as
+// [int length][payload][int crc32] so a torn tail left by a crash can be
+// detected and cut off on the next open.
+//
+// By default every append is forced to disk before it returns. In group-commit
+// mode appends only land in an in-memory batch; a flusher thread writes and
+// forces the batch once it is full or its oldest record has waited long enough,
+// and callers block in awaitDurable() until their sequence number is covered.
+//
+// A failed write or force stops the journal for good: the records it was writing
+// are cut off the file again where possible, their waiters get the error, and
+// every later append is refused. By then the caller may already have applied
+// those records in memory, so the owner must not checkpoint (see failure()); a
+// restart recovers from what is on disk.
+//
+// appendBatch() writes a BATCH header whose account field holds the number of
+// records that follow it. scan() only delivers the group once every member is
+// intact, so a batch is all-or-nothing across a crash.
+//
+// A record may carry the client's idempotency key, so replay rebuilds the
+// dedup cache along with the balances it protects.
+//
+// The PREPARE_, COMMIT_ and ABORT_ ops are one shard's side of a ShardedBank
+// transfer between shards (OUT on the payer's shard, IN on the payee's); their
+// key field holds the transfer id rather than a client key.
+class Journal implements Closeable {
+    public enum Op {
+        CREATE, DEPOSIT, WITHDRAW, TRANSFER, BATCH,
+        PREPARE_OUT, PREPARE_IN, COMMIT_OUT, COMMIT_IN, ABORT_OUT, ABORT_IN;
+
+        // One side of a cross-shard transfer, keyed by transfer id
+        boolean isTwoPhase() { return ordinal() >= PREPARE_OUT.ordinal(); }
+    }
+
+    // One committed mutation, as written to and read back from the journal
+    static final class Entry {
+        final long seq;
+        final Op op;
+        final long timestamp; // epoch millis
+        final int account;
+        final int counterparty;
+        final long amount; // minor units
+        final String holderName;
+        final String governmentId;
+        final String idempotencyKey; // null unless the client sent one; the transfer id for two-phase ops
+
+        Entry(long seq, Op op, long timestamp, int account, int counterparty, long amount,
+              String holderName, String governmentId) {
+            this(seq, op, timestamp, account, counterparty, amount, holderName, governmentId, null);
+        }
+
+        Entry(long seq, Op op, long timestamp, int account, int counterparty, long amount,
+              String holderName, String governmentId, String idempotencyKey) {
+            this.seq = seq;
+            this.op = op;
+            this.timestamp = timestamp;
+            this.account = account;
+            this.counterparty = counterparty;
+            this.amount = amount;
+            this.holderName = holderName;
+            this.governmentId = governmentId;
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        // An operation to hand to appendBatch(), which assigns its seq and timestamp
+        static Entry draft(Op op, int account, int counterparty, long amount) {
+            return new Entry(0, op, 0, account, counterparty, amount, null, null);
+        }
+
+        static Entry draft(Op op, int account, int counterparty, long amount, String idempotencyKey) {
+            return new Entry(0, op, 0, account, counterparty, amount, null, null, idempotencyKey);
+        }
+
+        static Entry draft(Op op, int account, int counterparty, long amount, String holderName, String governmentId) {
+            return new Entry(0, op, 0, account, counterparty, amount, holderName, governmentId);
+        }
+    }
+
+    // Batch sizes seen by the group-commit flusher
+    static final class CommitStats {
+        final long batches;
+        final long records;
+        final int maxBatch;
+        final long[] histogram; // bucket i counts batches of size [2^i, 2^(i+1))
+
+        CommitStats(long batches, long records, int maxBatch, long[] histogram) {
+            this.batches = batches;
+            this.records = records;
+            this.maxBatch = maxBatch;
+            this.histogram = histogram;
+        }
+
+        double averageBatch() { return batches == 0 ? 0 : (double) records / batches; }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("batches=%d records=%d avg=%.2f max=%d",
+                    batches, records, averageBatch(), maxBatch));
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] > 0) sb.append(String.format(" [%d..%d]=%d", 1 << i, (1 << (i + 1)) - 1, histogram[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final int HEADER = 4, TRAILER = 4;
+    private static final int MAX_RECORD = 64 * 1024;
+    private static final int FIXED_PAYLOAD = 8 + 1 + 8 + 4 + 4 + 8 + 2 + 2; // all but the strings
+    // Set on the op byte of records whose amount is a long in minor units;
+    // records without it predate fixed-point money and carry a double.
+    private static final int MINOR_UNITS = 0x80;
+    // Set on the op byte of records followed by an idempotency key string
+    private static final int KEYED = 0x40;
+
+    private final File file;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private final Object ioLock = new Object();
+    private ByteBuffer buf = ByteBuffer.allocate(256);
+    private long lastSeq;
+    private long durableSeq;
+    private volatile Consumer<Entry> appendListener;
+    private volatile LongConsumer durableListener;
+
+    // group commit state, guarded by this
+    private boolean groupCommit;
+    private int maxBatchSize;
+    private long maxWaitNanos;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer flushing = ByteBuffer.allocate(64 * 1024);
+    private int pendingCount;
+    private long pendingSince;
+    private IOException flushError; // set once a write fails; see the class comment
+    private Thread flusher;
+    private boolean closed;
+
+    private long batches, batchedRecords;
+    private int maxBatchSeen;
+    private final long[] batchHistogram = new long[32];
+
+    public Journal(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // find the last good record and drop anything torn after it
+        long end = scan(0, null);
+        if (end < channel.size()) channel.truncate(end);
+        channel.position(end);
+        durableSeq = lastSeq;
+    }
+
+    // Switches to group commit; flushes happen after maxBatchSize records or maxWaitMillis, whichever first
+    public synchronized void enableGroupCommit(int maxBatchSize, long maxWaitMillis) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        if (maxWaitMillis < 0) throw new IllegalArgumentException("maxWaitMillis must not be negative");
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = maxWaitMillis * 1_000_000L;
+        if (!groupCommit) {
+            groupCommit = true;
+            flusher = new Thread(this::flushLoop, "journal-group-commit");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        notifyAll();
+    }
+
+    public synchronized boolean isGroupCommit() { return groupCommit; }
+
+    // The write failure that stopped this journal, or null
+    public synchronized IOException failure() { return flushError; }
+
+    // Called with every appended entry while the journal lock is still held, so
+    // listeners see entries in sequence order. Must not block for long.
+    public void setAppendListener(Consumer<Entry> listener) { this.appendListener = listener; }
+
+    // Called with the new durable sequence each time it moves forward, also with the
+    // journal lock held. Must not block for long.
+    public void setDurableListener(LongConsumer listener) { this.durableListener = listener; }
+
+    public synchronized CommitStats commitStats() {
+        return new CommitStats(batches, batchedRecords, maxBatchSeen, batchHistogram.clone());
+    }
+
+    public File getFile() { return file; }
+    public synchronized long lastSequence() { return lastSeq; }
+    public synchronized long size() throws IOException { return channel.size(); }
+
+    // Appends one record and returns it with its sequence number. Without group commit
+    // the record is already forced; otherwise pass its seq to awaitDurable().
+    public synchronized Entry append(Op op, long timestamp, int account, int counterparty, long amount,
+                                    String holderName, String governmentId, String idempotencyKey) throws IOException {
+        long seq = lastSeq + 1;
+        buf.clear();
+        encode(seq, op, timestamp, account, counterparty, amount, holderName, governmentId, idempotencyKey);
+        write(seq, 1);
+        Entry e = new Entry(seq, op, timestamp, account, counterparty, amount, holderName, governmentId, idempotencyKey);
+        Consumer<Entry> listener = appendListener;
+        if (listener != null) listener.accept(e);
+        return e;
+    }
+
+    // Appends drafts as one all-or-nothing group, written (and in sync mode forced)
+    // together. Returns the members with their sequence numbers; the last one is
+    // what to pass to awaitDurable().
+    public synchronized List<Entry> appendBatch(long timestamp, List<Entry> drafts) throws IOException {
+        if (drafts.isEmpty()) throw new IllegalArgumentException("empty batch");
+        long seq = lastSeq + 1;
+        buf.clear();
+        Entry header = new Entry(seq, Op.BATCH, timestamp, drafts.size(), 0, 0, null, null);
+        encode(seq, Op.BATCH, timestamp, drafts.size(), 0, 0, null, null, null);
+        List<Entry> members = new ArrayList<>(drafts.size());
+        for (Entry d : drafts) {
+            seq++;
+            encode(seq, d.op, timestamp, d.account, d.counterparty, d.amount, d.holderName, d.governmentId, d.idempotencyKey);
+            members.add(new Entry(seq, d.op, timestamp, d.account, d.counterparty, d.amount, d.holderName, d.governmentId,
+                    d.idempotencyKey));
+        }
+        write(seq, drafts.size() + 1);
+        Consumer<Entry> listener = appendListener;
+        if (listener != null) {
+            listener.accept(header);
+            for (Entry e : members) listener.accept(e);
+        }
+        return members;
+    }
+
+    // Whether a record carrying these strings is small enough to append
+    static boolean fits(String holderName, String governmentId, String idempotencyKey) {
+        long payload = FIXED_PAYLOAD + utf8Length(holderName) + utf8Length(governmentId)
+                + (idempotencyKey == null ? 0 : 2 + utf8Length(idempotencyKey));
+        return payload <= MAX_RECORD;
+    }
+
+    private static int utf8Length(String s) {
+        return s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Frames one record onto the end of buf
+    private void encode(long seq, Op op, long timestamp, int account, int counterparty, long amount,
+                        String holderName, String governmentId, String idempotencyKey) throws IOException {
+        byte[] nameBytes = holderName == null ? new byte[0] : holderName.getBytes(StandardCharsets.UTF_8);
+        byte[] idBytes = governmentId == null ? new byte[0] : governmentId.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = idempotencyKey == null ? null : idempotencyKey.getBytes(StandardCharsets.UTF_8);
+        int payload = FIXED_PAYLOAD + nameBytes.length + idBytes.length + (keyBytes == null ? 0 : 2 + keyBytes.length);
+        if (payload > MAX_RECORD) throw new IOException("Journal record too large: " + payload);
+
+        int total = HEADER + payload + TRAILER;
+        if (buf.remaining() < total) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + total));
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        }
+        int start = buf.position();
+        buf.putInt(payload);
+        int flags = MINOR_UNITS | (keyBytes == null ? 0 : KEYED);
+        buf.putLong(seq).put((byte) (op.ordinal() | flags)).putLong(timestamp)
+           .putInt(account).putInt(counterparty).putLong(amount);
+        buf.putShort((short) nameBytes.length).put(nameBytes);
+        buf.putShort((short) idBytes.length).put(idBytes);
+        if (keyBytes != null) buf.putShort((short) keyBytes.length).put(keyBytes);
+        crc.reset();
+        crc.update(buf.array(), start + HEADER, payload);
+        buf.putInt((int) crc.getValue());
+    }
+
+    // Hands the records framed in buf to the disk (sync) or the pending batch (group commit)
+    private void write(long seq, int records) throws IOException {
+        if (flushError != null) throw new IOException("Journal stopped after a failed write: " + flushError);
+        buf.flip();
+        if (groupCommit) {
+            if (closed) throw new IOException("Journal is closed");
+            int total = buf.remaining();
+            if (pending.remaining() < total) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + total));
+                pending.flip();
+                bigger.put(pending);
+                pending = bigger;
+            }
+            pending.put(buf);
+            boolean first = pendingCount == 0;
+            if (first) pendingSince = System.nanoTime();
+            pendingCount += records;
+            lastSeq = seq;
+            // wake the flusher to start its wait timer, or because the batch is full
+            if (first || pendingCount >= maxBatchSize) notifyAll();
+        } else {
+            synchronized (ioLock) {
+                long start = channel.position();
+                try {
+                    while (buf.hasRemaining()) channel.write(buf);
+                    channel.force(false);
+                } catch (IOException e) {
+                    flushError = e;
+                    discardFrom(start);
+                    throw e;
+                }
+            }
+            lastSeq = seq;
+            markDurable(seq);
+        }
+    }
+
+    // Callers hold this
+    private void markDurable(long seq) {
+        if (seq <= durableSeq) return;
+        durableSeq = seq;
+        LongConsumer listener = durableListener;
+        if (listener != null) listener.accept(seq);
+    }
+
+    // Blocks until the record with this sequence number has been forced to disk
+    public synchronized void awaitDurable(long seq) throws IOException {
+        boolean interrupted = false;
+        while (durableSeq < seq) {
+            if (flushError != null) throw flushError;
+            if (closed && pendingCount == 0) throw new IOException("Journal closed before record " + seq + " was flushed");
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Feeds every record with seq > afterSeq to sink, in order
+    public synchronized void replay(long afterSeq, Consumer<Entry> sink) throws IOException {
+        scan(afterSeq, sink);
+    }
+
+    // Called once a snapshot covering every record up to lastSequence() is durable.
+    // Pending group-commit records are covered by that snapshot, so they are dropped
+    // and their waiters released.
+    public synchronized void reset() throws IOException {
+        if (flushError != null) throw new IOException("Journal stopped after a failed write: " + flushError);
+        synchronized (ioLock) {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+        }
+        pending.clear();
+        pendingCount = 0;
+        markDurable(lastSeq);
+        notifyAll();
+    }
+
+    // Keeps numbering monotonic across checkpoints when the log itself is empty.
+    // Records up to seq are in the snapshot, so they count as durable.
+    public synchronized void advanceTo(long seq) {
+        if (seq > lastSeq) lastSeq = seq;
+        markDurable(seq);
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            t = flusher;
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (ioLock) {
+            channel.close();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long batchSeq;
+            int batchCount;
+            synchronized (this) {
+                try {
+                    while (!batchReady()) {
+                        if (closed && pendingCount == 0) return;
+                        if (pendingCount == 0) {
+                            wait();
+                        } else {
+                            long waitNanos = maxWaitNanos - (System.nanoTime() - pendingSince);
+                            wait(Math.max(1, waitNanos / 1_000_000L), 0);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch = pending;
+                pending = flushing;
+                flushing = batch;
+                batchSeq = lastSeq;
+                batchCount = pendingCount;
+                pendingCount = 0;
+            }
+
+            IOException error = null;
+            batch.flip();
+            synchronized (ioLock) {
+                long start = -1;
+                try {
+                    start = channel.position();
+                    while (batch.hasRemaining()) channel.write(batch);
+                    channel.force(false);
+                } catch (IOException e) {
+                    error = e;
+                    if (start >= 0) discardFrom(start);
+                }
+            }
+            batch.clear();
+
+            synchronized (this) {
+                notifyAll();
+                if (error != null) {
+                    flushError = error;
+                    return; // nothing after a lost batch may be written
+                }
+                markDurable(batchSeq);
+                batches++;
+                batchedRecords += batchCount;
+                maxBatchSeen = Math.max(maxBatchSeen, batchCount);
+                batchHistogram[31 - Integer.numberOfLeadingZeros(batchCount)]++;
+            }
+        }
+    }
+
+    // After a failed write: cuts off whatever of it reached the file, so the records
+    // reported as failed are not found by the next replay. Caller holds ioLock.
+    private void discardFrom(long start) {
+        try {
+            channel.truncate(start);
+            channel.position(start);
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Failed to cut off unwritten journal records at " + start + "; they may be replayed: "
+                    + e.getMessage());
+        }
+    }
+
+    private boolean batchReady() {
+        if (pendingCount == 0) return false;
+        return closed || pendingCount >= maxBatchSize || System.nanoTime() - pendingSince >= maxWaitNanos;
+    }
+
+    // Walks the file from the start, returning the offset just past the last valid record.
+    // A batch group that is cut short counts as torn from its header onwards.
+    private long scan(long afterSeq, Consumer<Entry> sink) throws IOException {
+        long pos = 0, good = 0, size = channel.size();
+        List<Entry> group = null;
+        int groupLeft = 0;
+        ByteBuffer head = ByteBuffer.allocate(HEADER);
+        while (pos + HEADER <= size) {
+            head.clear();
+            if (readFully(head, pos) < HEADER) break;
+            int payload = head.getInt(0);
+            if (payload <= 0 || payload > MAX_RECORD || pos + HEADER + payload + TRAILER > size) break;
+
+            ByteBuffer rec = ByteBuffer.allocate(payload + TRAILER);
+            if (readFully(rec, pos + HEADER) < rec.capacity()) break;
+            crc.reset();
+            crc.update(rec.array(), 0, payload);
+            if ((int) crc.getValue() != rec.getInt(payload)) break;
+
+            rec.position(0).limit(payload);
+            Entry e = decode(rec);
+            pos += HEADER + payload + TRAILER;
+            if (e.op == Op.BATCH) {
+                group = new ArrayList<>(e.account);
+                groupLeft = e.account;
+                continue;
+            }
+            if (group != null) {
+                group.add(e);
+                if (--groupLeft > 0) continue;
+                for (Entry m : group) deliver(m, afterSeq, sink);
+                group = null;
+            } else {
+                deliver(e, afterSeq, sink);
+            }
+            good = pos;
+        }
+        return good;
+    }
+
+    private void deliver(Entry e, long afterSeq, Consumer<Entry> sink) {
+        lastSeq = Math.max(lastSeq, e.seq);
+        if (sink != null && e.seq > afterSeq) sink.accept(e);
+    }
+
+    private int readFully(ByteBuffer dst, long position) throws IOException {
+        int read = 0;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position + read);
+            if (n < 0) break;
+            read += n;
+        }
+        return read;
+    }
+
+    private static Entry decode(ByteBuffer rec) {
+        long seq = rec.getLong();
+        int opByte = rec.get() & 0xFF;
+        Op op = Op.values()[opByte & ~(MINOR_UNITS | KEYED)];
+        long ts = rec.getLong();
+        int account = rec.getInt();
+        int counterparty = rec.getInt();
+        long amount = (opByte & MINOR_UNITS) != 0 ? rec.getLong() : Money.fromDouble(rec.getDouble());
+        String name = readString(rec);
+        String govId = readString(rec);
+        String key = (opByte & KEYED) != 0 ? readString(rec) : null;
+        return new Entry(seq, op, ts, account, counterparty, amount,
+                name.isEmpty() ? null : name, govId.isEmpty() ? null : govId, key);
+    }
+
+    private static String readString(ByteBuffer rec) {
+        int len = rec.getShort() & 0xFFFF;
+        String s = new String(rec.array(), rec.arrayOffset() + rec.position(), len, StandardCharsets.UTF_8);
+        rec.position(rec.position() + len);
+        return s;
+    }
+}
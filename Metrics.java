@@ -0,0 +1,335 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.*;
+
+// ---------------- Metrics class ----------------
+// In-process instrumentation for Bank: a latency histogram and a failure count
+// per public operation, failure counts per exception type, and histograms for
+// the phases inside an operation (lock wait, journal append, durability wait,
+// audit hand-off, checkpoint).
+//
+// Recording is a couple of atomic increments on preallocated arrays and never
+// allocates, so it can sit on the commit path. Percentiles are only computed
+// when somebody reads them: over JMX, where this is a DynamicMBean, or in the
+// periodic text dump.
+final class Metrics implements DynamicMBean {
+    public enum Op { CREATE, DEPOSIT, WITHDRAW, TRANSFER, BATCH, BALANCE, STATEMENT, PREPARE, RESOLVE }
+
+    public enum Phase {
+        LOCK_WAIT,      // state lock plus account stripes
+        JOURNAL_APPEND, // journal write, including the fsync when group commit is off
+        DURABLE_WAIT,   // waiting for a group-commit flush to cover the operation
+        AUDIT,          // handing the entry to the audit ring; grows when BLOCK backpressure kicks in
+        CHECKPOINT,     // saveState: store flush, snapshot write, journal reset
+        REPLICATION_WAIT // SYNC replication: waiting for a follower to acknowledge the operation
+    }
+
+    private final Histogram[] ops = new Histogram[Op.values().length];
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+    private final AtomicLongArray failures = new AtomicLongArray(Op.values().length);
+    private final ConcurrentHashMap<String, LongAdder> failuresByType = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+    private final Map<String, Supplier<Object>> gauges = new LinkedHashMap<>();
+
+    // text dump state
+    private ScheduledExecutorService dumper;
+    private final long[] lastCounts = new long[Op.values().length];
+    private long lastDumpNanos = System.nanoTime();
+
+    Metrics() {
+        for (int i = 0; i < ops.length; i++) ops[i] = new Histogram();
+        for (int i = 0; i < phases.length; i++) phases[i] = new Histogram();
+        for (Op op : Op.values()) {
+            String n = camel(op.name());
+            attributes.put(n + "Count", () -> ops[op.ordinal()].count());
+            attributes.put(n + "Failures", () -> failures.get(op.ordinal()));
+            histogramAttributes(n, ops[op.ordinal()]);
+        }
+        for (Phase p : Phase.values()) histogramAttributes(camel(p.name()), phases[p.ordinal()]);
+        attributes.put("FailuresByType", () -> failuresByType.toString());
+    }
+
+    // Publishes a value computed on read, e.g. replication lag. Register before the MBean is.
+    void gauge(String name, Supplier<Object> value) {
+        attributes.put(name, value);
+        gauges.put(name, value);
+    }
+
+    // ---------------- Recording (hot path) ----------------
+    public void record(Op op, long startNanos) {
+        ops[op.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public void recordPhase(Phase phase, long startNanos) {
+        phases[phase.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    // Failures are off the hot path; only the first of each exception type allocates its counter
+    public void failed(Op op, Throwable t) {
+        failures.incrementAndGet(op.ordinal());
+        failuresByType.computeIfAbsent(t.getClass().getSimpleName(), k -> new LongAdder()).increment();
+    }
+
+    // ---------------- Reading ----------------
+    public Histogram.Snapshot op(Op op) { return ops[op.ordinal()].snapshot(); }
+    public Histogram.Snapshot phase(Phase phase) { return phases[phase.ordinal()].snapshot(); }
+    public long failures(Op op) { return failures.get(op.ordinal()); }
+
+    public Map<String, Long> failuresByType() {
+        Map<String, Long> m = new TreeMap<>();
+        failuresByType.forEach((k, v) -> m.put(k, v.sum()));
+        return m;
+    }
+
+    public void reset() {
+        for (Histogram h : ops) h.reset();
+        for (Histogram h : phases) h.reset();
+        for (int i = 0; i < failures.length(); i++) failures.set(i, 0);
+        failuresByType.clear();
+    }
+
+    // One line per operation and phase; rates are per second since the previous dump
+    public synchronized String dump() {
+        long now = System.nanoTime();
+        double secs = Math.max(1e-9, (now - lastDumpNanos) / 1e9);
+        lastDumpNanos = now;
+        StringBuilder sb = new StringBuilder();
+        String ts = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        for (Op op : Op.values()) {
+            Histogram.Snapshot s = op(op);
+            long delta = s.count() - lastCounts[op.ordinal()];
+            lastCounts[op.ordinal()] = s.count();
+            sb.append(ts).append(" | ").append(op)
+              .append(" count=").append(s.count())
+              .append(" failed=").append(failures(op))
+              .append(String.format(" rate=%.1f/s", delta / secs));
+            appendLatencies(sb, s);
+        }
+        for (Phase p : Phase.values()) {
+            Histogram.Snapshot s = phase(p);
+            sb.append(ts).append(" | ").append(p).append(" count=").append(s.count());
+            appendLatencies(sb, s);
+        }
+        if (!gauges.isEmpty()) {
+            sb.append(ts).append(" | GAUGES");
+            for (Map.Entry<String, Supplier<Object>> g : gauges.entrySet()) sb.append(' ').append(g.getKey()).append('=').append(g.getValue().get());
+            sb.append(System.lineSeparator());
+        }
+        if (!failuresByType.isEmpty()) sb.append(ts).append(" | FAILURES ").append(failuresByType()).append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    private static void appendLatencies(StringBuilder sb, Histogram.Snapshot s) {
+        sb.append(String.format(" p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                s.percentile(0.50) / 1e3, s.percentile(0.99) / 1e3, s.percentile(0.999) / 1e3, s.max() / 1e3))
+          .append(System.lineSeparator());
+    }
+
+    // Appends dump() to file every periodSeconds on a daemon thread, until stopDump()
+    public synchronized void startDump(File file, long periodSeconds) {
+        if (periodSeconds < 1) throw new IllegalArgumentException("periodSeconds must be at least 1");
+        stopDump();
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+                w.write(dump());
+            } catch (IOException e) {
+                System.err.println("Failed to write metrics: " + e.getMessage());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+
+    // ---------------- JMX ----------------
+    // Registers under the platform MBean server; returns null (and logs) if the name is taken
+    ObjectName register(String name, File dataDir) {
+        try {
+            ObjectName on = new ObjectName("BankingManagementSystem:type=Metrics,name=" + ObjectName.quote(name)
+                    + ",dir=" + ObjectName.quote(dataDir.getAbsolutePath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            return on;
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics MBean: " + e.getMessage());
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName on) {
+        if (on == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+        } catch (JMException e) {
+            System.err.println("Failed to unregister metrics MBean: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Supplier<Object> s = attributes.get(attribute);
+        if (s == null) throw new AttributeNotFoundException(attribute);
+        return s.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String n : names) {
+            Supplier<Object> s = attributes.get(n);
+            if (s != null) list.add(new Attribute(n, s.get()));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        switch (action) {
+            case "dump":
+                return dump();
+            case "reset":
+                reset();
+                return null;
+            default:
+                throw new ReflectionException(new NoSuchMethodException(action));
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attrs = new ArrayList<>();
+        for (Map.Entry<String, Supplier<Object>> e : attributes.entrySet()) {
+            String type = e.getKey().equals("FailuresByType") ? String.class.getName()
+                    : e.getKey().endsWith("Micros") ? Double.class.getName() : Long.class.getName();
+            attrs.add(new MBeanAttributeInfo(e.getKey(), type, e.getKey(), true, false, false));
+        }
+        MBeanOperationInfo[] opsInfo = {
+                new MBeanOperationInfo("dump", "Text summary of every histogram", new MBeanParameterInfo[0],
+                        String.class.getName(), MBeanOperationInfo.INFO),
+                new MBeanOperationInfo("reset", "Clear every histogram and counter", new MBeanParameterInfo[0],
+                        "void", MBeanOperationInfo.ACTION)
+        };
+        return new MBeanInfo(getClass().getName(), "Bank operation latencies and failure counts",
+                attrs.toArray(new MBeanAttributeInfo[0]), null, opsInfo, null);
+    }
+
+    private void histogramAttributes(String prefix, Histogram h) {
+        if (!attributes.containsKey(prefix + "Count")) attributes.put(prefix + "Count", h::count);
+        attributes.put(prefix + "P50Micros", () -> h.snapshot().percentile(0.50) / 1e3);
+        attributes.put(prefix + "P99Micros", () -> h.snapshot().percentile(0.99) / 1e3);
+        attributes.put(prefix + "P999Micros", () -> h.snapshot().percentile(0.999) / 1e3);
+        attributes.put(prefix + "MaxMicros", () -> h.snapshot().max() / 1e3);
+    }
+
+    // LOCK_WAIT -> LockWait
+    private static String camel(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : s.split("_")) sb.append(part.charAt(0)).append(part.substring(1).toLowerCase(Locale.ROOT));
+        return sb.toString();
+    }
+
+    // Log-linear histogram of nanosecond values: 16 linear sub-buckets per power of
+    // two, so any recorded value is reported to within about 6%.
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.incrementAndGet(index(nanos));
+            count.incrementAndGet();
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) { }
+        }
+
+        long count() { return count.get(); }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+            count.set(0);
+            max.set(0);
+        }
+
+        Snapshot snapshot() {
+            long[] b = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) n += (b[i] = buckets.get(i));
+            return new Snapshot(b, n, max.get());
+        }
+
+        static int index(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return ((exp - SUB_BITS + 1) << SUB_BITS) | (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+        }
+
+        // Smallest value that maps to bucket idx
+        static long lowest(int idx) {
+            if (idx < SUB) return idx;
+            int exp = (idx >>> SUB_BITS) + SUB_BITS - 1;
+            return (long) (SUB | (idx & (SUB - 1))) << (exp - SUB_BITS);
+        }
+
+        // Point-in-time copy; the counts may straddle concurrent records, which is fine for reporting
+        static final class Snapshot {
+            private final long[] buckets;
+            private final long count, max;
+
+            Snapshot(long[] buckets, long count, long max) {
+                this.buckets = buckets;
+                this.count = count;
+                this.max = max;
+            }
+
+            public long count() { return count; }
+            public long max() { return max; }
+
+            // Upper bound of the bucket holding the q-th value, capped at the recorded max
+            public long percentile(double q) {
+                if (count == 0) return 0;
+                long rank = Math.max(1, (long) Math.ceil(q * count));
+                long seen = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    seen += buckets[i];
+                    if (seen >= rank) return Math.min(max, i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE);
+                }
+                return max;
+            }
+        }
+    }
+}
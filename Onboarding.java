@@ -0,0 +1,181 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// ---------------- Onboarding class ----------------
+// Bulk account import from a CSV of "name,governmentId,initialDeposit" rows, for
+// migrating a branch. The file is read as a stream in chunks; each chunk is
+// parsed and checked (KYC, minimum deposit) in parallel, and the rows that pass
+// are opened with one Bank.createAccounts call, i.e. one block of account
+// numbers and one journal batch. Rows that fail go to a rejects CSV with the
+// exception type and message, so they can be fixed and re-imported.
+//
+// Fields may be double-quoted (with "" for a quote) so names can hold commas.
+// A first line starting with "name" is taken as a header and skipped.
+final class Onboarding {
+    static final int CHUNK = 8192;
+
+    private Onboarding() { }
+
+    // One input row and its outcome
+    static final class Applicant {
+        final long line;
+        private final String raw;
+        String name, governmentId;
+        long deposit;
+        BankException error;   // set when the row is rejected
+        int accountNumber;     // set once opened
+
+        Applicant(long line, String raw) {
+            this.line = line;
+            this.raw = raw;
+        }
+
+        // Parses and validates the row; runs on a pool thread and touches nothing shared
+        void check() {
+            try {
+                List<String> f = parseCsv(raw);
+                if (f.size() != 3) throw new BankException("Expected 3 fields (name, government ID, initial deposit), found " + f.size());
+                name = f.get(0);
+                governmentId = f.get(1);
+                // checked per row, since one record too large for the journal would fail its whole chunk
+                if (!Journal.fits(name, governmentId, null)) throw new BankException("Name and government ID too long");
+                deposit = Money.parse(f.get(2));
+                Bank.validateApplicant(name, governmentId, deposit);
+            } catch (BankException e) {
+                error = e;
+            }
+        }
+    }
+
+    static final class Report {
+        long accepted, rejected;
+
+        @Override
+        public String toString() { return "accepted=" + accepted + " rejected=" + rejected; }
+    }
+
+    // Imports every row of in. rejects receives the failures; accepted (may be null)
+    // receives "line,accountNumber" for every account opened.
+    public static Report importCsv(Bank bank, BufferedReader in, Writer rejects, Writer accepted) throws IOException {
+        Report report = new Report();
+        rejects.write("line,reason,message,record\n");
+        if (accepted != null) accepted.write("line,accountNumber\n");
+        List<Applicant> chunk = new ArrayList<>(CHUNK);
+        String line;
+        long lineNo = 0;
+        while ((line = in.readLine()) != null) {
+            lineNo++;
+            if (line.isBlank()) continue;
+            if (lineNo == 1 && line.trim().toLowerCase(Locale.ROOT).startsWith("name")) continue;
+            chunk.add(new Applicant(lineNo, line));
+            if (chunk.size() == CHUNK) {
+                importChunk(bank, chunk, rejects, accepted, report);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) importChunk(bank, chunk, rejects, accepted, report);
+        rejects.flush();
+        if (accepted != null) accepted.flush();
+        return report;
+    }
+
+    private static void importChunk(Bank bank, List<Applicant> chunk, Writer rejects, Writer accepted,
+                                    Report report) throws IOException {
+        chunk.parallelStream().forEach(Applicant::check);
+        List<Applicant> valid = new ArrayList<>(chunk.size());
+        for (Applicant a : chunk) if (a.error == null) valid.add(a);
+        if (!valid.isEmpty()) {
+            try {
+                int first = bank.createAccounts(valid);
+                for (int i = 0; i < valid.size(); i++) valid.get(i).accountNumber = first + i;
+            } catch (BankException e) {
+                // the batch is all-or-nothing, so every row in it shares the failure
+                for (Applicant a : valid) a.error = e;
+            }
+        }
+        // written in input order
+        for (Applicant a : chunk) {
+            if (a.error != null) {
+                report.rejected++;
+                rejects.write(Long.toString(a.line));
+                rejects.write(',');
+                rejects.write(a.error.getClass().getSimpleName());
+                rejects.write(',');
+                writeQuoted(rejects, a.error.getMessage());
+                rejects.write(',');
+                writeQuoted(rejects, a.raw);
+                rejects.write('\n');
+            } else {
+                report.accepted++;
+                if (accepted != null) accepted.write(a.line + "," + a.accountNumber + "\n");
+            }
+        }
+    }
+
+    // Splits one CSV line; quoted fields may contain commas and "" for a quote. Fields are trimmed.
+    static List<String> parseCsv(String line) throws BankException {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false, wasQuoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        cur.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    cur.append(c);
+                }
+            } else if (c == '"' && cur.toString().isBlank()) {
+                cur.setLength(0);
+                quoted = wasQuoted = true;
+            } else if (c == ',') {
+                fields.add(wasQuoted ? cur.toString() : cur.toString().trim());
+                cur.setLength(0);
+                wasQuoted = false;
+            } else {
+                cur.append(c);
+            }
+        }
+        if (quoted) throw new BankException("Unterminated quoted field");
+        fields.add(wasQuoted ? cur.toString() : cur.toString().trim());
+        return fields;
+    }
+
+    private static void writeQuoted(Writer w, String s) throws IOException {
+        w.write('"');
+        w.write(s == null ? "" : s.replace("\"", "\"\""));
+        w.write('"');
+    }
+
+    // java Onboarding <dataDir> <applicants.csv> [rejects.csv]
+    // Also writes <applicants.csv>.accounts.csv mapping each accepted line to its account number.
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: Onboarding <dataDir> <applicants.csv> [rejects.csv]");
+            System.exit(2);
+        }
+        File input = new File(args[1]);
+        File rejectsFile = new File(args.length > 2 ? args[2] : args[1] + ".rejects.csv");
+        File acceptedFile = new File(args[1] + ".accounts.csv");
+        File dataDir = new File(args[0]);
+        if (!dataDir.isDirectory() && !dataDir.mkdirs()) throw new IOException("Cannot create " + dataDir);
+        Bank bank = new Bank("OpenSim Bank", dataDir);
+        bank.loadState();
+        long started = System.nanoTime();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8), 1 << 16);
+             Writer rejects = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rejectsFile), StandardCharsets.UTF_8));
+             Writer accepted = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(acceptedFile), StandardCharsets.UTF_8))) {
+            Report r = importCsv(bank, in, rejects, accepted);
+            bank.saveState();
+            System.out.printf("Imported %s in %d ms; rejects in %s%n", r, (System.nanoTime() - started) / 1_000_000L, rejectsFile);
+        } finally {
+            bank.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+// ---------------- ReadSnapshot class ----------------
+// Point-in-time view of every account and balance, for listings and reports
+// that must add up while writes keep flowing. Nothing is copied and no bank
+// lock is held: each Account keeps its committed balance as a short chain of
+// versions tagged with the journal sequence that produced them, and a snapshot
+// at sequence S reads, per account, the newest version at or before S.
+//
+// Versions are published from the journal's append listener, so they appear
+// in sequence order, and the published mark only moves past a batch once all
+// of its members are in. Writers drop versions no open snapshot can still
+// reach, so with no snapshot open each account keeps just its latest one.
+// Close snapshots promptly; an open one pins history for every account
+// written since it was taken.
+final class ReadSnapshot implements AutoCloseable {
+    private final Registry registry;
+    private final AccountTable accounts;
+    private final long seq;
+    private boolean closed;
+
+    private ReadSnapshot(Registry registry, AccountTable accounts, long seq) {
+        this.registry = registry;
+        this.accounts = accounts;
+        this.seq = seq;
+    }
+
+    // Journal sequence this view reflects
+    public long seq() { return seq; }
+
+    public long balance(int accountNumber) throws AccountNotFoundException {
+        Account a = accounts.get(accountNumber);
+        Version v = a == null ? null : a.committedAt(seq);
+        if (v == null) throw new AccountNotFoundException("Account not found: " + accountNumber);
+        return v.balance;
+    }
+
+    // Visits every account that existed at seq(), in account-number order
+    public void forEach(Consumer<AccountView> action) {
+        accounts.forEach(a -> {
+            Version v = a.committedAt(seq);
+            if (v != null) action.accept(new AccountView(a.getAccountNumber(), a.getHolderName(), v.balance));
+        });
+    }
+
+    public List<AccountView> accounts() {
+        List<AccountView> list = new ArrayList<>();
+        forEach(list::add);
+        return list;
+    }
+
+    public long totalBalance() {
+        long total = 0;
+        for (AccountView v : accounts()) total += v.balance;
+        return total;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        registry.release(seq);
+    }
+
+    // One account as of the snapshot
+    static final class AccountView {
+        final int accountNumber;
+        final String holderName;
+        final long balance;
+
+        AccountView(int accountNumber, String holderName, long balance) {
+            this.accountNumber = accountNumber;
+            this.holderName = holderName;
+            this.balance = balance;
+        }
+
+        public int getAccountNumber() { return accountNumber; }
+        public String getHolderName() { return holderName; }
+        public long getBalance() { return balance; }
+
+        @Override
+        public String toString() {
+            return String.format("Acc[%d] %s Bal:%s", accountNumber, holderName, Money.format(balance));
+        }
+    }
+
+    // A committed balance. 'older' is cut by writers once no open snapshot can need it.
+    static final class Version {
+        final long seq;
+        final long balance;
+        Version older;
+
+        Version(long seq, long balance, Version older) {
+            this.seq = seq;
+            this.balance = balance;
+            this.older = older;
+        }
+
+        // Keeps the newest version at or before oldestOpen, and everything newer
+        void trim(long oldestOpen) {
+            Version v = this;
+            while (v != null && v.seq > oldestOpen) v = v.older;
+            if (v != null) v.older = null;
+        }
+    }
+
+    // Shared between a Bank's writers and its snapshots. Installing versions and
+    // registering a snapshot take the same monitor, so a writer never trims a
+    // version that a snapshot being opened is about to read. The monitor is held
+    // for a few field writes at a time and never across I/O.
+    static final class Registry {
+        private final TreeMap<Long, Integer> open = new TreeMap<>();
+        private long oldestOpen = Long.MAX_VALUE;
+        private volatile long published; // every entry up to here is reflected in the versions
+        private int batchRemaining;      // members of the current journal batch still to come
+
+        synchronized ReadSnapshot open(AccountTable accounts) {
+            long s = published;
+            open.merge(s, 1, Integer::sum);
+            oldestOpen = open.firstKey();
+            return new ReadSnapshot(this, accounts, s);
+        }
+
+        private synchronized void release(long s) {
+            open.computeIfPresent(s, (k, n) -> n == 1 ? null : n - 1);
+            oldestOpen = open.isEmpty() ? Long.MAX_VALUE : open.firstKey();
+        }
+
+        // Called from the journal's append listener, in sequence order. Accounts are
+        // created with their first version already in place, so CREATE needs nothing.
+        synchronized void publish(Journal.Entry e, AccountTable accounts) {
+            switch (e.op) {
+                case BATCH:
+                    batchRemaining = e.account;
+                    return;
+                case DEPOSIT:
+                    accounts.get(e.account).commitVersion(e.seq, e.amount, oldestOpen);
+                    break;
+                case WITHDRAW:
+                    accounts.get(e.account).commitVersion(e.seq, -e.amount, oldestOpen);
+                    break;
+                case TRANSFER:
+                    accounts.get(e.account).commitVersion(e.seq, -e.amount, oldestOpen);
+                    accounts.get(e.counterparty).commitVersion(e.seq, e.amount, oldestOpen);
+                    break;
+                // cross-shard transfers: the payer's funds leave at prepare, the payee's arrive at commit
+                case PREPARE_OUT:
+                    accounts.get(e.account).commitVersion(e.seq, -e.amount, oldestOpen);
+                    break;
+                case COMMIT_IN:
+                case ABORT_OUT:
+                    accounts.get(e.account).commitVersion(e.seq, e.amount, oldestOpen);
+                    break;
+                default:
+                    break;
+            }
+            if (batchRemaining > 0 && --batchRemaining > 0) return;
+            published = e.seq;
+        }
+
+        // After a load: every account's current balance becomes its only version, as of seq
+        synchronized void reset(long seq, AccountTable accounts) {
+            accounts.forEach(a -> a.resetCommitted(seq));
+            batchRemaining = 0;
+            published = seq;
+        }
+    }
+}
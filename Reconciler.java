@@ -0,0 +1,301 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// ---------------- Reconciler class ----------------
+// Ledger integrity check: recomputes every account's balance from its history
+// and compares it with the balance the bank holds, and checks each sealed
+// history segment against the CRC32 written when it was sealed.
+//
+// Bank.verifyLedger hands over a read snapshot and the number of history
+// records it covers, taken together so they describe the same cut. The
+// history is summed in parallel by fork-join over record ranges, each task
+// into its own dense per-account array; the comparison then runs in parallel
+// over the accounts. Each record's account and history link are checked on
+// the way. Funds held by a cross-shard transfer still in doubt have left the
+// balance but not yet reached the history, so they are allowed for.
+//
+// A clean run saves its per-account sums and the record count it reached to
+// verify.ckpt. An incremental run starts from those sums and only reads the
+// records and segments added since, so a nightly check costs the day's
+// traffic rather than the whole ledger. A run that finds problems never
+// moves the checkpoint.
+final class Reconciler {
+    static final int MAX_REPORTED = 1000;
+    private static final int MAGIC = 0x424E4B56; // "BNKV"
+
+    // One account whose history does not add up to its balance
+    static final class Mismatch {
+        final int account;
+        final long balance;    // as the bank holds it
+        final long recomputed; // from the history, less any funds held by a prepared transfer
+
+        Mismatch(int account, long balance, long recomputed) {
+            this.account = account;
+            this.balance = balance;
+            this.recomputed = recomputed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Acc[%d] balance %s history %s", account, Money.format(balance), Money.format(recomputed));
+        }
+    }
+
+    // Outcome of one run. The lists keep the first MAX_REPORTED entries; the counts are exact.
+    static final class Report {
+        final boolean incremental;
+        final long fromRecord, toRecord;
+        int accounts;
+        int segmentsChecked, segmentsPending; // pending: sealed but not checksummed until the next checkpoint
+        final List<Mismatch> mismatches = new ArrayList<>();
+        final List<String> problems = new ArrayList<>();
+        long mismatchCount, problemCount;
+
+        Report(boolean incremental, long fromRecord, long toRecord) {
+            this.incremental = incremental;
+            this.fromRecord = fromRecord;
+            this.toRecord = toRecord;
+        }
+
+        boolean ok() { return mismatchCount == 0 && problemCount == 0; }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format(
+                    "%s check of records [%d, %d): %d accounts, %d segments checksummed (%d pending), %d mismatches, %d problems",
+                    incremental ? "Incremental" : "Full", fromRecord, toRecord, accounts,
+                    segmentsChecked, segmentsPending, mismatchCount, problemCount));
+            for (Mismatch m : mismatches) sb.append(System.lineSeparator()).append("  MISMATCH ").append(m);
+            for (String p : problems) sb.append(System.lineSeparator()).append("  PROBLEM ").append(p);
+            return sb.toString();
+        }
+    }
+
+    private Reconciler() { }
+
+    // Checks history records [0, covered) (or from the last clean run, if incremental)
+    // against the balances in snap; held is the amount prepared transfers hold per account
+    static Report run(ReadSnapshot snap, TransactionStore store, long covered, Map<Integer, Long> held,
+                      File stateFile, boolean incremental) throws IOException {
+        List<ReadSnapshot.AccountView> views = snap.accounts();
+        int base = Integer.MAX_VALUE, top = Integer.MIN_VALUE;
+        for (ReadSnapshot.AccountView v : views) {
+            base = Math.min(base, v.getAccountNumber());
+            top = Math.max(top, v.getAccountNumber());
+        }
+        if (views.isEmpty()) base = top = 0;
+        int span = top - base + 1;
+        boolean[] known = new boolean[span];
+        for (ReadSnapshot.AccountView v : views) known[v.getAccountNumber() - base] = true;
+
+        // start from the last clean run's sums, or from nothing
+        long from = 0;
+        long[] sums = new long[span];
+        if (incremental) {
+            long resumed = readState(stateFile, sums, base);
+            if (resumed >= 0 && resumed <= covered) {
+                from = resumed;
+            } else {
+                incremental = false;
+                java.util.Arrays.fill(sums, 0);
+            }
+        }
+        Report report = new Report(incremental, from, covered);
+        report.accounts = views.size();
+        Problems problems = new Problems();
+
+        // sum the history in parallel, then fold in the starting sums
+        if (covered > from) {
+            int parallelism = ForkJoinPool.commonPool().getParallelism();
+            long leaf = Math.max(TransactionStore.RECORDS_PER_SEGMENT, (covered - from) / (4L * parallelism));
+            long[] partial = ForkJoinPool.commonPool().invoke(
+                    new SumTask(store, from, covered, leaf, base, known, problems));
+            for (int i = 0; i < span; i++) sums[i] += partial[i];
+        }
+
+        // compare, in parallel over the accounts
+        ConcurrentLinkedQueue<Mismatch> found = new ConcurrentLinkedQueue<>();
+        AtomicLong mismatchCount = new AtomicLong();
+        final int b = base;
+        views.parallelStream().forEach(v -> {
+            long recomputed = sums[v.getAccountNumber() - b] - held.getOrDefault(v.getAccountNumber(), 0L);
+            if (recomputed != v.getBalance() && mismatchCount.getAndIncrement() < MAX_REPORTED) {
+                found.add(new Mismatch(v.getAccountNumber(), v.getBalance(), recomputed));
+            }
+        });
+        report.mismatches.addAll(found);
+        report.mismatches.sort((x, y) -> Integer.compare(x.account, y.account));
+        report.mismatchCount = mismatchCount.get();
+
+        // sealed segments; an incremental run only looks at ones holding new records
+        int firstSeg = (int) (from / TransactionStore.RECORDS_PER_SEGMENT);
+        int sealedAtCut = (int) (covered / TransactionStore.RECORDS_PER_SEGMENT);
+        AtomicLong checked = new AtomicLong(), pending = new AtomicLong();
+        IntStream.range(firstSeg, sealedAtCut).parallel().forEach(seg -> {
+            try {
+                Boolean match = store.checksumMatches(seg);
+                if (match == null) {
+                    pending.incrementAndGet();
+                } else {
+                    checked.incrementAndGet();
+                    if (!match) problems.add("Segment " + seg + " does not match its checksum");
+                }
+            } catch (IOException e) {
+                problems.add("Segment " + seg + " could not be checked: " + e.getMessage());
+            }
+        });
+        report.segmentsChecked = (int) checked.get();
+        report.segmentsPending = (int) pending.get();
+        report.problems.addAll(problems.list);
+        report.problemCount = problems.count.get();
+
+        if (report.ok()) writeState(stateFile, covered, views, sums, base);
+        return report;
+    }
+
+    // Problems found by concurrent tasks, of which the first MAX_REPORTED are kept
+    private static final class Problems {
+        final ConcurrentLinkedQueue<String> list = new ConcurrentLinkedQueue<>();
+        final AtomicLong count = new AtomicLong();
+
+        void add(String problem) {
+            if (count.getAndIncrement() < MAX_REPORTED) list.add(problem);
+        }
+    }
+
+    // Sums records [lo, hi) per account into an array indexed by account number - base
+    private static final class SumTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+        private final TransactionStore store;
+        private final long lo, hi, leaf;
+        private final int base;
+        private final boolean[] known;
+        private final Problems problems;
+
+        SumTask(TransactionStore store, long lo, long hi, long leaf, int base, boolean[] known, Problems problems) {
+            this.store = store;
+            this.lo = lo;
+            this.hi = hi;
+            this.leaf = leaf;
+            this.base = base;
+            this.known = known;
+            this.problems = problems;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (hi - lo > leaf) {
+                long mid = (lo + hi) >>> 1;
+                SumTask right = new SumTask(store, mid, hi, leaf, base, known, problems);
+                right.fork();
+                long[] sums = new SumTask(store, lo, mid, leaf, base, known, problems).compute();
+                long[] other = right.join();
+                for (int i = 0; i < sums.length; i++) sums[i] += other[i];
+                return sums;
+            }
+            long[] sums = new long[known.length];
+            for (long i = lo; i < hi; i++) {
+                int account = store.account(i);
+                int slot = account - base;
+                if (slot < 0 || slot >= known.length || !known[slot]) {
+                    problems.add("Record " + i + " belongs to unknown account " + account);
+                    continue;
+                }
+                long prev = store.prev(i);
+                if (prev >= i || (prev >= 0 && store.account(prev) != account)) {
+                    problems.add("Record " + i + " of account " + account + " has a broken history link to " + prev);
+                }
+                long amount = store.amount(i);
+                switch (store.type(i)) {
+                    case DEPOSIT:
+                    case TRANSFER_IN:
+                        sums[slot] += amount;
+                        break;
+                    case WITHDRAW:
+                    case TRANSFER_OUT:
+                        sums[slot] -= amount;
+                        break;
+                }
+            }
+            return sums;
+        }
+    }
+
+    // Layout: int magic, long records covered, int n, then n x (int account, long sum), int crc32
+    private static void writeState(File file, long covered, List<ReadSnapshot.AccountView> views,
+                                   long[] sums, int base) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos, 64 * 1024), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeLong(covered);
+            out.writeInt(views.size());
+            for (ReadSnapshot.AccountView v : views) {
+                out.writeInt(v.getAccountNumber());
+                out.writeLong(sums[v.getAccountNumber() - base]);
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Fills sums from the last clean run and returns the records it covered, or -1 if
+    // there is no usable state (missing, damaged, or for accounts this bank lacks)
+    private static long readState(File file, long[] sums, int base) {
+        if (!file.exists()) return -1;
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) return -1;
+            long covered = in.readLong();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                int slot = in.readInt() - base;
+                long sum = in.readLong();
+                if (slot < 0 || slot >= sums.length) return -1;
+                sums[slot] = sum;
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) return -1;
+            return covered;
+        } catch (IOException e) {
+            System.err.println("Failed to read verification state: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // java Reconciler <dataDir> [--incremental]; exits 1 if anything is wrong
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !"--incremental".equals(args[1]))) {
+            System.err.println("usage: Reconciler <dataDir> [--incremental]");
+            System.exit(2);
+        }
+        Bank bank = new Bank("OpenSim Bank", new File(args[0]));
+        bank.loadState();
+        Report r;
+        try {
+            long started = System.nanoTime();
+            r = bank.verifyLedger(args.length == 2);
+            System.out.println(r);
+            System.out.printf("Verified in %d ms%n", (System.nanoTime() - started) / 1_000_000L);
+        } finally {
+            bank.close();
+        }
+        if (!r.ok()) System.exit(1);
+    }
+}
@@ -0,0 +1,681 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ---------------- Replication class ----------------
+// Hot standby: a leader Bank streams every committed journal entry to follower
+// processes over loopback TCP, and each follower journals and applies them to
+// its own Bank under the same sequence numbers, so it can be promoted and carry
+// on where the leader stopped.
+//
+// The leader keeps the most recent entries in a ring indexed by sequence,
+// filled from the journal's append listener. A follower connects, says which
+// sequence it has applied, and is streamed everything after it. If that is no
+// longer in the ring (it was down too long, or fell too far behind) or it is
+// ahead of the leader, it is sent an image instead: a snapshot taken under the
+// exclusive state lock plus every history record it covers, after which
+// streaming resumes from the snapshot's sequence. Batches are replayed as
+// batches, so a follower never holds half of one. Only what the leader's own
+// journal has forced is sent, entries and images alike, so a follower never
+// holds an operation the leader could lose in a crash and then number again.
+//
+// Followers acknowledge what they have on disk; the position a follower gives
+// on connecting is where streaming starts, not an acknowledgement. In ASYNC
+// mode the leader never waits for them. In SYNC mode each operation also
+// waits, after its own journal record is durable, until some follower has
+// acknowledged it; if none does within the timeout (or none is connected) the
+// leader logs it and runs asynchronously until a follower catches up, rather
+// than stopping writes.
+// Lag per follower is in status(), and the worst of it is published as Bank
+// metrics.
+//
+// Promotion does not fence the old leader; make sure it is down (or stop its
+// clients) before pointing them at the promoted follower.
+//
+// Wire format, big-endian:
+//   follower -> leader: int magic 'BNKR', long appliedSeq, then 'A' long seq per acknowledgement
+//   leader -> follower: 'E' entry | 'H' long leaderSeq (heartbeat)
+//                     | 'I' long seq, long txnCount, long snapshotBytes, snapshot bytes, txnCount records
+//   entry:  long seq, byte op, long timestamp, int account, int counterparty, long amount,
+//           str holderName, str governmentId, str idempotencyKey
+//   record: int account, byte type (0x80 if opening), long amount, long timestamp, int counterparty, long prev
+// where str is an int byte length (-1 for null) followed by UTF-8 bytes.
+final class Replication {
+    static final int DEFAULT_BACKLOG = 1 << 16; // entries the leader keeps for followers to catch up from
+    private static final int MAGIC = 0x424E4B52; // "BNKR"
+    private static final byte ENTRY = 'E', HEARTBEAT = 'H', IMAGE = 'I', ACK = 'A';
+    private static final int HEARTBEAT_MILLIS = 1000;
+    private static final int TIMEOUT_MILLIS = 5000;  // silence after which the other side is taken as gone
+    private static final int RETRY_MILLIS = 1000;
+    private static final int CHUNK = 1024;           // entries sent (or applied) before a flush (or ack)
+    private static final int OPENING = 0x80;
+    private static final int BUFFER = 64 * 1024;
+
+    public enum Ack { ASYNC, SYNC }
+
+    // A snapshot of the leader for a follower to start from, with the sequence and history length it covers
+    static final class Image {
+        final File file;
+        final long seq;
+        final long txnCount;
+
+        Image(File file, long seq, long txnCount) {
+            this.file = file;
+            this.seq = seq;
+            this.txnCount = txnCount;
+        }
+    }
+
+    // Writes the history records of an image into a follower's emptied store
+    interface HistoryFill {
+        void fill(TransactionStore store) throws IOException;
+    }
+
+    private Replication() { }
+
+    // ---------------- Leader ----------------
+    static final class Leader implements Closeable {
+        private final Bank bank;
+        private final ServerSocket server;
+        private final Ack ack;
+        private final long syncTimeoutMillis;
+        private final Set<Link> links = ConcurrentHashMap.newKeySet();
+        private final Thread acceptor;
+        private volatile boolean closed;
+
+        // all guarded by this
+        private final Journal.Entry[] ring;
+        private long newest;      // seq of the newest entry published
+        private long durable;     // the leader's journal has forced every entry up to here
+        private long floor;       // entries at or before floor were never in the ring
+        private long acked;       // highest seq any follower has acknowledged
+        private boolean degraded; // SYNC mode gave up waiting and runs asynchronously until a follower catches up
+        private long syncTimeouts;
+
+        // Called by Bank.startReplication under the exclusive state lock; lastSeq is the journal's current end
+        Leader(Bank bank, int port, Ack ack, long syncTimeoutMillis, int backlog, long lastSeq) throws IOException {
+            if (Integer.bitCount(backlog) != 1) throw new IllegalArgumentException("backlog must be a power of two");
+            if (syncTimeoutMillis < 1) throw new IllegalArgumentException("syncTimeoutMillis must be positive");
+            this.bank = bank;
+            this.ack = ack;
+            this.syncTimeoutMillis = syncTimeoutMillis;
+            this.ring = new Journal.Entry[backlog];
+            this.newest = this.floor = this.acked = this.durable = lastSeq;
+            this.server = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+            this.acceptor = new Thread(this::acceptLoop, "replication-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        public int getPort() { return server.getLocalPort(); }
+
+        // Called from the journal's append listener, in sequence order
+        synchronized void publish(Journal.Entry e) {
+            // a reload can move the journal past entries this ring never saw
+            if (e.seq != newest + 1) floor = e.seq - 1;
+            ring[(int) e.seq & (ring.length - 1)] = e;
+            newest = e.seq;
+            notifyAll();
+        }
+
+        // Called from the journal as its durable sequence advances
+        synchronized void durable(long seq) {
+            if (seq <= durable) return;
+            durable = seq;
+            notifyAll();
+        }
+
+        // Newest entry that may be streamed
+        private long sendable() {
+            return Math.min(newest, durable);
+        }
+
+        private long oldestAvailable() {
+            return Math.max(floor, newest - ring.length) + 1;
+        }
+
+        // SYNC mode: waits until a follower has seq on disk, or the timeout passes
+        void awaitReplicated(long seq) {
+            if (ack == Ack.ASYNC) return;
+            synchronized (this) {
+                if (degraded) return;
+                if (links.isEmpty()) {
+                    degrade("no follower connected");
+                    return;
+                }
+                long deadline = System.nanoTime() + syncTimeoutMillis * 1_000_000L;
+                boolean interrupted = false;
+                try {
+                    while (acked < seq && !closed) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            syncTimeouts++;
+                            degrade("no acknowledgement of " + seq + " within " + syncTimeoutMillis + " ms");
+                            return;
+                        }
+                        try {
+                            wait(Math.max(1, remaining / 1_000_000L));
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                } finally {
+                    if (interrupted) Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void degrade(String why) {
+            if (degraded) return;
+            degraded = true;
+            System.err.println("Replication: " + why + "; continuing asynchronously until a follower catches up");
+        }
+
+        // An 'A' frame; anything past what this leader has published is not from this history
+        private synchronized void acknowledged(Link link, long seq) {
+            if (seq > newest) return;
+            link.acked = seq;
+            if (seq > acked) acked = seq;
+            if (degraded && seq >= newest) {
+                degraded = false;
+                System.err.println("Replication: follower " + link.peer + " caught up; acknowledging synchronously again");
+            }
+            notifyAll();
+        }
+
+        // One connected follower's position
+        static final class Status {
+            final String follower;
+            final long acked;
+            final long lagRecords;
+            final long lagMillis;  // age of the oldest unacknowledged entry; -1 if it is no longer in the ring
+            final int images;
+
+            Status(String follower, long acked, long lagRecords, long lagMillis, int images) {
+                this.follower = follower;
+                this.acked = acked;
+                this.lagRecords = lagRecords;
+                this.lagMillis = lagMillis;
+                this.images = images;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("%s acked=%d lag=%d records/%s images=%d", follower, acked, lagRecords,
+                        lagMillis < 0 ? "unknown" : lagMillis + " ms", images);
+            }
+        }
+
+        synchronized List<Status> status() {
+            List<Status> list = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            for (Link l : links) {
+                long lag = Math.max(0, newest - l.acked);
+                long lagMillis = 0;
+                if (lag > 0) {
+                    lagMillis = l.acked + 1 >= oldestAvailable()
+                            ? Math.max(0, now - ring[(int) (l.acked + 1) & (ring.length - 1)].timestamp) : -1;
+                }
+                list.add(new Status(l.peer, l.acked, lag, lagMillis, l.images));
+            }
+            return list;
+        }
+
+        synchronized long newestSeq() { return newest; }
+        synchronized long syncTimeouts() { return syncTimeouts; }
+        synchronized boolean isDegraded() { return degraded; }
+        int followers() { return links.size(); }
+
+        // Worst lag over the connected followers, for Bank metrics
+        long maxLagRecords() {
+            long max = 0;
+            for (Status s : status()) max = Math.max(max, s.lagRecords);
+            return max;
+        }
+
+        // -1 if some follower is further behind than the ring reaches
+        long maxLagMillis() {
+            long max = 0;
+            for (Status s : status()) {
+                if (s.lagMillis < 0) return -1;
+                max = Math.max(max, s.lagMillis);
+            }
+            return max;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            server.close();
+            for (Link l : links) l.close();
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        private void acceptLoop() {
+            while (!closed) {
+                try {
+                    Socket s = server.accept();
+                    Link link = new Link(s);
+                    links.add(link);
+                    Thread t = new Thread(link, "replication-send-" + link.peer);
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    if (!closed) System.err.println("Replication accept failed: " + e.getMessage());
+                }
+            }
+        }
+
+        // One follower connection: this thread sends, a second one reads acknowledgements
+        private final class Link implements Runnable {
+            final Socket socket;
+            final String peer;
+            volatile long acked;
+            volatile int images;
+
+            Link(Socket socket) {
+                this.socket = socket;
+                this.peer = socket.getRemoteSocketAddress().toString();
+            }
+
+            void close() {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+            @Override
+            public void run() {
+                try {
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(TIMEOUT_MILLIS);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER));
+                    if (in.readInt() != MAGIC) throw new IOException("not a follower");
+                    long cursor = in.readLong();
+                    acked = cursor; // where streaming starts, not an acknowledgement
+                    socket.setSoTimeout(0);
+                    Thread reader = new Thread(() -> readAcks(in), "replication-ack-" + peer);
+                    reader.setDaemon(true);
+                    reader.start();
+                    System.err.println("Replication: follower " + peer + " connected at " + cursor);
+                    send(out, cursor);
+                } catch (SocketException e) {
+                    // follower went away or the leader is closing
+                } catch (IOException e) {
+                    if (!closed) System.err.println("Replication to " + peer + " failed: " + e.getMessage());
+                } finally {
+                    links.remove(this);
+                    close();
+                    synchronized (Leader.this) {
+                        Leader.this.notifyAll();
+                    }
+                }
+            }
+
+            private void send(DataOutputStream out, long cursor) throws IOException {
+                List<Journal.Entry> chunk = new ArrayList<>(CHUNK);
+                while (!closed) {
+                    boolean image = false;
+                    long head;
+                    synchronized (Leader.this) {
+                        long deadline = System.nanoTime() + HEARTBEAT_MILLIS * 1_000_000L;
+                        try {
+                            while (!closed && sendable() == cursor) {
+                                long remaining = deadline - System.nanoTime();
+                                if (remaining <= 0) break;
+                                Leader.this.wait(Math.max(1, remaining / 1_000_000L));
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        head = sendable();
+                        if (cursor > newest || cursor + 1 < oldestAvailable()) {
+                            image = true;
+                        } else {
+                            for (long s = cursor + 1; s <= head && chunk.size() < CHUNK; s++) {
+                                chunk.add(ring[(int) s & (ring.length - 1)]);
+                            }
+                        }
+                    }
+                    if (image) {
+                        cursor = sendImage(out);
+                    } else if (chunk.isEmpty()) {
+                        out.writeByte(HEARTBEAT);
+                        out.writeLong(head);
+                    } else {
+                        for (Journal.Entry e : chunk) {
+                            out.writeByte(ENTRY);
+                            writeEntry(out, e);
+                        }
+                        cursor = chunk.get(chunk.size() - 1).seq;
+                        chunk.clear();
+                    }
+                    out.flush();
+                }
+            }
+
+            private long sendImage(DataOutputStream out) throws IOException {
+                Image img = bank.replicaImage();
+                try {
+                    TransactionStore st = bank.history();
+                    System.err.println("Replication: sending image at " + img.seq + " (" + img.txnCount
+                            + " history records) to " + peer);
+                    out.writeByte(IMAGE);
+                    out.writeLong(img.seq);
+                    out.writeLong(img.txnCount);
+                    out.writeLong(img.file.length());
+                    Files.copy(img.file.toPath(), out);
+                    for (long i = 0; i < img.txnCount; i++) {
+                        out.writeInt(st.account(i));
+                        out.writeByte(st.type(i).ordinal() | (st.isOpening(i) ? OPENING : 0));
+                        out.writeLong(st.amount(i));
+                        out.writeLong(st.timestamp(i));
+                        out.writeInt(st.counterparty(i));
+                        out.writeLong(st.prev(i));
+                    }
+                    images++;
+                    return img.seq;
+                } finally {
+                    Files.deleteIfExists(img.file.toPath());
+                }
+            }
+
+            private void readAcks(DataInputStream in) {
+                try {
+                    while (true) {
+                        if (in.readByte() != ACK) throw new IOException("unexpected frame from follower");
+                        acknowledged(this, in.readLong());
+                    }
+                } catch (IOException e) {
+                    // the sender notices the closed socket on its next write
+                    close();
+                }
+            }
+        }
+    }
+
+    // ---------------- Follower ----------------
+    static final class Follower implements Closeable {
+        private final Bank bank;
+        private final int leaderPort;
+        private final Thread thread;
+        private volatile boolean stopped;
+        private volatile Socket socket;
+        private boolean reported; // the current outage was already logged
+
+        // status, written by the follower thread
+        private volatile boolean connected;
+        private volatile long leaderSeq;
+        private volatile long lastContact;
+        private volatile int images;
+
+        // bank must be loaded and must not be written to by anyone else until promote()
+        Follower(Bank bank, int leaderPort) throws IOException {
+            this.bank = bank;
+            this.leaderPort = leaderPort;
+            bank.enableGroupCommit(CHUNK, 2);
+            this.thread = new Thread(this::run, "replication-follow");
+            thread.start();
+        }
+
+        // Stops following and hands over the bank, checkpointed, ready to serve writes
+        Bank promote() throws IOException {
+            close();
+            bank.saveState();
+            return bank;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stopped = true;
+            Socket s = socket;
+            if (s != null) s.close();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        boolean isConnected() { return connected; }
+
+        @Override
+        public String toString() {
+            long applied;
+            try {
+                applied = bank.lastSequence();
+            } catch (IOException e) {
+                applied = -1;
+            }
+            return String.format("%s applied=%d leader=%d lag=%d records, last heard %d ms ago, images=%d",
+                    connected ? "connected" : "disconnected", applied, leaderSeq, Math.max(0, leaderSeq - applied),
+                    lastContact == 0 ? -1 : System.currentTimeMillis() - lastContact, images);
+        }
+
+        private void run() {
+            while (!stopped) {
+                try (Socket s = new Socket(InetAddress.getLoopbackAddress(), leaderPort)) {
+                    socket = s;
+                    if (stopped) break;
+                    follow(s);
+                } catch (IOException | BankException e) {
+                    // a follower is normally started before, and outlives, its leader; say so once per outage
+                    if (!stopped && !reported) {
+                        System.err.println("Replication: leader unavailable: "
+                                + (e instanceof EOFException ? "connection closed" : e.getMessage()));
+                    }
+                    reported = true;
+                } finally {
+                    socket = null;
+                    connected = false;
+                }
+                if (stopped) break;
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void follow(Socket s) throws IOException, BankException {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), BUFFER));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            // nothing applied yet: ask for an image, which also clears out any half-installed one
+            long applied = bank.lastSequence();
+            out.writeInt(MAGIC);
+            out.writeLong(applied == 0 ? -1 : applied);
+            out.flush();
+            connected = true;
+            reported = false;
+
+            Journal.Entry header = null;
+            List<Journal.Entry> group = new ArrayList<>();
+            long unacked = 0;
+            int sinceAck = 0;
+            while (!stopped) {
+                byte frame = in.readByte();
+                lastContact = System.currentTimeMillis();
+                switch (frame) {
+                    case ENTRY: {
+                        Journal.Entry e = readEntry(in);
+                        leaderSeq = Math.max(leaderSeq, e.seq);
+                        if (e.op == Journal.Op.BATCH) {
+                            header = e;
+                            continue;
+                        }
+                        group.add(e);
+                        if (header != null && group.size() < header.account) continue;
+                        unacked = bank.applyReplicated(header, group);
+                        header = null;
+                        group.clear();
+                        sinceAck++;
+                        break;
+                    }
+                    case HEARTBEAT:
+                        leaderSeq = Math.max(leaderSeq, in.readLong());
+                        break;
+                    case IMAGE: {
+                        long seq = in.readLong();
+                        long txnCount = in.readLong();
+                        long bytes = in.readLong();
+                        bank.installReplica(in, bytes, st -> {
+                            Transaction.Type[] types = Transaction.Type.values();
+                            for (long i = 0; i < txnCount; i++) {
+                                int account = in.readInt();
+                                int type = in.readByte() & 0xFF;
+                                long amount = in.readLong();
+                                long ts = in.readLong();
+                                int counterparty = in.readInt();
+                                long prev = in.readLong();
+                                st.append(account, types[type & ~OPENING], amount, counterparty, ts,
+                                        (type & OPENING) != 0, prev);
+                            }
+                        });
+                        bank.enableGroupCommit(CHUNK, 2);
+                        images++;
+                        leaderSeq = Math.max(leaderSeq, seq);
+                        unacked = seq;
+                        sinceAck = CHUNK;
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unexpected replication frame " + frame);
+                }
+                // acknowledge once caught up with what has arrived, or every CHUNK operations
+                if (unacked > 0 && (sinceAck >= CHUNK || in.available() == 0)) {
+                    bank.syncReplicated(unacked);
+                    out.writeByte(ACK);
+                    out.writeLong(unacked);
+                    out.flush();
+                    unacked = 0;
+                    sinceAck = 0;
+                }
+            }
+        }
+    }
+
+    // ---------------- Wire helpers ----------------
+    private static void writeEntry(DataOutputStream out, Journal.Entry e) throws IOException {
+        out.writeLong(e.seq);
+        out.writeByte(e.op.ordinal());
+        out.writeLong(e.timestamp);
+        out.writeInt(e.account);
+        out.writeInt(e.counterparty);
+        out.writeLong(e.amount);
+        writeString(out, e.holderName);
+        writeString(out, e.governmentId);
+        writeString(out, e.idempotencyKey);
+    }
+
+    private static Journal.Entry readEntry(DataInputStream in) throws IOException {
+        long seq = in.readLong();
+        Journal.Op op = Journal.Op.values()[in.readByte()];
+        long ts = in.readLong();
+        int account = in.readInt();
+        int counterparty = in.readInt();
+        long amount = in.readLong();
+        String name = readString(in);
+        String govId = readString(in);
+        String key = readString(in);
+        return new Journal.Entry(seq, op, ts, account, counterparty, amount, name, govId, key);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        if (len > 1 << 16) throw new IOException("String too long: " + len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // java Replication lead   <dataDir> <serverPort> <replicationPort> [sync <timeoutMillis>]
+    // java Replication follow <dataDir> <leaderReplicationPort> <serverPort>
+    // Both read commands from stdin: "status", and on a follower "promote", which stops
+    // following and starts serving clients on serverPort.
+    public static void main(String[] args) throws IOException {
+        boolean lead = args.length >= 4 && "lead".equals(args[0]);
+        boolean follow = args.length == 4 && "follow".equals(args[0]);
+        if (!lead && !follow || lead && args.length != 4 && !(args.length == 6 && "sync".equals(args[4]))) {
+            System.err.println("usage: Replication lead <dataDir> <serverPort> <replicationPort> [sync <timeoutMillis>]");
+            System.err.println("       Replication follow <dataDir> <leaderReplicationPort> <serverPort>");
+            System.exit(2);
+        }
+        File dataDir = new File(args[1]);
+        if (!dataDir.isDirectory() && !dataDir.mkdirs()) throw new IOException("Cannot create " + dataDir);
+        Bank bank = new Bank("OpenSim Bank", dataDir);
+        bank.loadState();
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        if (lead) {
+            bank.enableGroupCommit(256, 2);
+            Ack ack = args.length == 6 ? Ack.SYNC : Ack.ASYNC;
+            Leader leader = bank.startReplication(Integer.parseInt(args[3]), ack,
+                    args.length == 6 ? Long.parseLong(args[5]) : 1000);
+            BankServer srv = new BankServer(bank, Integer.parseInt(args[2]));
+            System.out.println("Leading on 127.0.0.1:" + leader.getPort() + " (" + ack + "), serving on 127.0.0.1:" + srv.getPort());
+            String line;
+            while ((line = console.readLine()) != null) {
+                if ("status".equals(line.trim())) {
+                    System.out.println("seq=" + leader.newestSeq() + " followers=" + leader.followers()
+                            + " syncTimeouts=" + leader.syncTimeouts() + (leader.isDegraded() ? " (degraded)" : ""));
+                    for (Leader.Status s : leader.status()) System.out.println("  " + s);
+                }
+            }
+            srv.close();
+            bank.saveState();
+            bank.close();
+            return;
+        }
+        Follower follower = new Follower(bank, Integer.parseInt(args[2]));
+        System.out.println("Following 127.0.0.1:" + args[2]);
+        String line;
+        while ((line = console.readLine()) != null) {
+            line = line.trim();
+            if ("status".equals(line)) System.out.println(follower);
+            if ("promote".equals(line)) break;
+        }
+        if (line == null) {
+            follower.close();
+            bank.saveState();
+            bank.close();
+            return;
+        }
+        Bank promoted = follower.promote();
+        BankServer srv = new BankServer(promoted, Integer.parseInt(args[3]));
+        System.out.println("Promoted at " + promoted.lastSequence() + "; serving on 127.0.0.1:" + srv.getPort());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                srv.close();
+                promoted.saveState();
+                promoted.close();
+            } catch (IOException e) {
+                System.err.println("Failed to shut down cleanly: " + e.getMessage());
+            }
+        }, "bank-server-shutdown"));
+    }
+}
@@ -0,0 +1,784 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+// ---------------- ShardedBank class ----------------
+// Accounts partitioned across several Bank shards, each with its own data
+// directory (snapshot, journal, history, audit) and its own locks. Shard i
+// owns the account numbers FIRST_ACCOUNT + i * ACCOUNTS_PER_SHARD onwards, for
+// ACCOUNTS_PER_SHARD numbers, and opens accounts only from that block, so an
+// account number names its shard without a lookup. Shard 0's block starts
+// where a single Bank's numbering does, so an existing data directory can
+// become shard 0. The shard count may grow between runs but never shrink.
+//
+// New accounts go to the shards in turn; with an idempotency key, to the shard
+// picked by the key's hash, so a retry reaches the shard that remembers it.
+// Single-account operations, and transfers within one shard, go straight to
+// the owning shard. A transfer between shards is a two-phase commit
+// coordinated here, under a transfer id:
+//   1. prepare: the payer's shard holds the amount off the balance and the
+//      payee's shard checks the account; each vote is durable before it is
+//      returned. A refusal or failure on either side aborts both.
+//   2. decide: a COMMIT record for the id is appended to the decision log
+//      (coordinator.log) and forced. This is the commit point.
+//   3. finish: each shard commits its side, writing its history record and,
+//      on the payee's side, the credit; then a DONE record is appended.
+// A transfer without a COMMIT record is presumed aborted. recover(), run on
+// open and every RECOVERY_MILLIS after, asks each shard for the transfers it
+// holds in doubt and commits or aborts each one by the log, so after a crash
+// of the coordinator or of a shard at any step a transfer ends up applied on
+// both sides or on neither. Only one coordinator may drive a set of shards;
+// coordinator.lock keeps a second one off the same directory, and each
+// shard's Bank locks its own data directory.
+//
+// Shards run in this process (open()) or as separate local processes, each
+// serving its Bank through BankServer (main's "shard" command, and connect()).
+//
+// An idempotency key on a cross-shard transfer becomes its transfer id: a
+// retry of a committed transfer returns without running again for as long as
+// the decision log keeps the record, IdempotencyCache.DEFAULT_TTL_MILLIS.
+final class ShardedBank implements Closeable {
+    static final int FIRST_ACCOUNT = 1001;
+    static final int ACCOUNTS_PER_SHARD = 10_000_000;
+    static final int MAX_SHARDS = (Integer.MAX_VALUE - FIRST_ACCOUNT) / ACCOUNTS_PER_SHARD;
+    static final long RECOVERY_MILLIS = 5_000;
+
+    private static final int LOG_MAGIC = 0x424E4B43; // "BNKC"
+    private static final byte COMMIT = 'C', DONE = 'D';
+    private static final int MAX_LOG_RECORD = 1024;
+
+    private final List<Shard> shards;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final String idPrefix = "t" + Long.toString(System.currentTimeMillis(), 36) + ":";
+    private final AtomicLong nextId = new AtomicLong();
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet(); // between first prepare and last resolve
+
+    // Held while this coordinator runs; separate from the log, which compaction replaces
+    private final FileChannel lockChannel;
+
+    // Decision log; the map mirrors it and both are guarded by logLock
+    private final File logFile;
+    private final Object logLock = new Object();
+    private FileChannel log;
+    private final Map<String, Decision> decisions = new HashMap<>();
+    private volatile IOException logFailure; // set once a write fails; see logDecision
+
+    private ScheduledExecutorService recovery;
+
+    // A committed transfer, and whether both shards have confirmed their side
+    private static final class Decision {
+        final long millis;
+        boolean done;
+
+        Decision(long millis) { this.millis = millis; }
+    }
+
+    private ShardedBank(File dir, List<Shard> shards) throws IOException {
+        if (shards.isEmpty() || shards.size() > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be 1.." + MAX_SHARDS);
+        }
+        this.shards = shards;
+        Files.createDirectories(dir.toPath());
+        this.lockChannel = lock(new File(dir, "coordinator.lock"));
+        this.logFile = new File(dir, "coordinator.log");
+        try {
+            this.log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                readLog();
+            } catch (IOException | RuntimeException e) {
+                log.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    private static FileChannel lock(File file) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = ch.tryLock();
+        } catch (OverlappingFileLockException heldInThisProcess) {
+            lock = null;
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        if (lock == null) {
+            ch.close();
+            throw new IllegalStateException("Directory " + file.getParentFile() + " is in use by another coordinator");
+        }
+        return ch; // closing the channel releases the lock
+    }
+
+    // Runs every shard in this process, shard i under dir/shard-<i>
+    static ShardedBank open(File dir, int shardCount) throws IOException {
+        if (shardCount < 1 || shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be 1.." + MAX_SHARDS);
+        }
+        List<Shard> shards = new ArrayList<>(shardCount);
+        try {
+            for (int i = 0; i < shardCount; i++) shards.add(new LocalShard(openShard(new File(dir, "shard-" + i), i)));
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(shards);
+            throw e;
+        }
+        return start(dir, shards);
+    }
+
+    // Drives shards running as separate processes (see main), shard i listening on ports[i]
+    static ShardedBank connect(File dir, int... ports) throws IOException {
+        List<Shard> shards = new ArrayList<>(ports.length);
+        for (int port : ports) shards.add(new RemoteShard(port));
+        return start(dir, shards);
+    }
+
+    private static ShardedBank start(File dir, List<Shard> shards) throws IOException {
+        ShardedBank sb;
+        try {
+            sb = new ShardedBank(dir, shards);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(shards);
+            throw e;
+        }
+        sb.recover();
+        sb.recovery = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "shard-recovery");
+            t.setDaemon(true);
+            return t;
+        });
+        sb.recovery.scheduleWithFixedDelay(sb::recover, RECOVERY_MILLIS, RECOVERY_MILLIS, TimeUnit.MILLISECONDS);
+        return sb;
+    }
+
+    // One shard's Bank, numbering its accounts from shard index's block. Fails with
+    // IllegalStateException if another bank has the directory open.
+    private static Bank openShard(File dataDir, int index) throws IOException {
+        Files.createDirectories(dataDir.toPath());
+        Bank bank = new Bank("OpenSim Bank shard " + index, dataDir);
+        try {
+            bank.loadState();
+            bank.setAccountNumberRange(firstAccount(index), firstAccount(index) + ACCOUNTS_PER_SHARD - 1);
+            bank.enableGroupCommit(256, 2);
+        } catch (IOException | RuntimeException e) {
+            bank.close();
+            throw e;
+        }
+        return bank;
+    }
+
+    // For a failed open: whatever did open is released so its directory can be reopened
+    private static void closeQuietly(List<Shard> shards) {
+        for (Shard s : shards) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close shard: " + e.getMessage());
+            }
+        }
+    }
+
+    static int firstAccount(int shard) {
+        return FIRST_ACCOUNT + shard * ACCOUNTS_PER_SHARD;
+    }
+
+    public int shardCount() { return shards.size(); }
+
+    // Index of the shard that owns accountNumber
+    public int shardOf(int accountNumber) throws AccountNotFoundException {
+        long i = ((long) accountNumber - FIRST_ACCOUNT) / ACCOUNTS_PER_SHARD;
+        if (accountNumber < FIRST_ACCOUNT || i >= shards.size()) {
+            throw new AccountNotFoundException("Account not found: " + accountNumber);
+        }
+        return (int) i;
+    }
+
+    private Shard route(int accountNumber) throws AccountNotFoundException {
+        return shards.get(shardOf(accountNumber));
+    }
+
+    // ---------------- Operations ----------------
+    // Same rules and idempotency keys as the Bank methods of the same name
+
+    public int createAccount(String fullName, String governmentId, long initialDeposit) throws BankException {
+        return createAccount(fullName, governmentId, initialDeposit, null);
+    }
+
+    public int createAccount(String fullName, String governmentId, long initialDeposit, String idempotencyKey)
+            throws BankException {
+        int i = idempotencyKey != null ? Math.floorMod(idempotencyKey.hashCode(), shards.size())
+                                       : Math.floorMod(nextShard.getAndIncrement(), shards.size());
+        return shards.get(i).createAccount(fullName, governmentId, initialDeposit, idempotencyKey);
+    }
+
+    public void deposit(int accountNumber, long amount) throws BankException {
+        deposit(accountNumber, amount, null);
+    }
+
+    public void deposit(int accountNumber, long amount, String idempotencyKey) throws BankException {
+        route(accountNumber).deposit(accountNumber, amount, idempotencyKey);
+    }
+
+    public void withdraw(int accountNumber, long amount) throws BankException {
+        withdraw(accountNumber, amount, null);
+    }
+
+    public void withdraw(int accountNumber, long amount, String idempotencyKey) throws BankException {
+        route(accountNumber).withdraw(accountNumber, amount, idempotencyKey);
+    }
+
+    public void transfer(int fromAcc, int toAcc, long amount) throws BankException {
+        transfer(fromAcc, toAcc, amount, null);
+    }
+
+    public void transfer(int fromAcc, int toAcc, long amount, String idempotencyKey) throws BankException {
+        if (fromAcc == toAcc) throw new BankException("Cannot transfer to same account");
+        Shard from = route(fromAcc), to = route(toAcc);
+        if (from == to) {
+            from.transfer(fromAcc, toAcc, amount, idempotencyKey);
+        } else {
+            transferAcross(from, to, fromAcc, toAcc, amount, idempotencyKey);
+        }
+    }
+
+    public long getBalance(int accountNumber) throws BankException {
+        return route(accountNumber).getBalance(accountNumber);
+    }
+
+    public String getName(int accountNumber) throws BankException {
+        return route(accountNumber).getName(accountNumber);
+    }
+
+    public List<Transaction> getMiniStatement(int accountNumber, int n) throws BankException {
+        return route(accountNumber).getMiniStatement(accountNumber, n);
+    }
+
+    // ---------------- Two-phase transfers ----------------
+
+    private void transferAcross(Shard from, Shard to, int fromAcc, int toAcc, long amount, String idempotencyKey)
+            throws BankException {
+        if (amount <= 0) throw new BankException("Amount must be positive");
+        checkLog();
+        String id = idempotencyKey != null ? "k:" + idempotencyKey : idPrefix + nextId.incrementAndGet();
+        IdempotencyCache.validate(id);
+        if (idempotencyKey != null && committed(id)) return;
+        if (!inFlight.add(id)) throw new BankException("Transfer " + idempotencyKey + " is already in progress");
+        try {
+            // phase 1: the payer's side first, so a refusal there costs the payee's shard nothing
+            List<Shard> asked = new ArrayList<>(2);
+            try {
+                asked.add(from);
+                from.prepareDebit(id, fromAcc, toAcc, amount);
+                asked.add(to);
+                to.prepareCredit(id, toAcc, fromAcc, amount);
+            } catch (BankException e) {
+                for (Shard s : asked) abort(s, id);
+                throw e;
+            }
+            // if the record may not be on disk the outcome is unknown; recovery after a restart decides
+            try {
+                logDecision(COMMIT, id);
+            } catch (IOException e) {
+                throw new BankException("Transfer outcome unknown, decision log failed: " + e.getMessage());
+            }
+            // phase 2: the transfer has happened; whatever is left here is finished by recover()
+            try {
+                from.commitPrepared(id);
+                to.commitPrepared(id);
+                logDecision(DONE, id);
+            } catch (BankException | IOException e) {
+                System.err.println("Transfer " + id + " committed, completion left to recovery: " + e.getMessage());
+            }
+        } finally {
+            inFlight.remove(id);
+        }
+    }
+
+    // Best effort: a side left prepared is aborted by the next recovery pass
+    private static void abort(Shard shard, String id) {
+        try {
+            shard.abortPrepared(id);
+        } catch (BankException e) {
+            System.err.println("Failed to abort transfer " + id + ", left to recovery: " + e.getMessage());
+        }
+    }
+
+    // Resolves every transfer a shard holds in doubt that no caller is still working on:
+    // committed if the decision log has it, aborted otherwise. Committed transfers no shard
+    // holds any more are marked done. Returns the number of sides resolved.
+    public synchronized int recover() {
+        if (logFailure != null) return 0;
+        int resolved = 0;
+        boolean reachedAll = true;
+        // taken before any shard is asked, so a transfer that commits during the pass
+        // is never mistaken for one whose shards have both confirmed
+        Set<String> unfinished = new HashSet<>();
+        synchronized (logLock) {
+            for (Map.Entry<String, Decision> d : decisions.entrySet()) {
+                if (!d.getValue().done) unfinished.add(d.getKey());
+            }
+        }
+        Set<String> left = new HashSet<>(); // reported in doubt and not committed by this pass
+        for (int i = 0; i < shards.size(); i++) {
+            List<String> ids;
+            try {
+                ids = shards.get(i).inDoubt();
+            } catch (BankException e) {
+                System.err.println("Recovery could not reach shard " + i + ": " + e.getMessage());
+                reachedAll = false;
+                continue;
+            }
+            for (String id : ids) {
+                // claimed like a live transfer, so a keyed retry cannot re-prepare the id
+                // between the decision being read and the hold being resolved
+                if (!inFlight.add(id)) {
+                    left.add(id);
+                    continue;
+                }
+                try {
+                    if (committed(id)) {
+                        shards.get(i).commitPrepared(id);
+                    } else {
+                        shards.get(i).abortPrepared(id);
+                    }
+                    resolved++;
+                } catch (BankException e) {
+                    System.err.println("Recovery could not resolve transfer " + id + " on shard " + i + ": "
+                            + e.getMessage());
+                    left.add(id);
+                } finally {
+                    inFlight.remove(id);
+                }
+            }
+        }
+        if (reachedAll) {
+            // both sides of an unfinished transfer were prepared before the pass began, so
+            // each reached shard either reported it in doubt or has already committed it
+            List<String> finished = new ArrayList<>();
+            for (String id : unfinished) if (!left.contains(id)) finished.add(id);
+            try {
+                for (String id : finished) logDecision(DONE, id);
+            } catch (IOException e) {
+                System.err.println("Failed to log finished transfers: " + e.getMessage());
+            }
+        }
+        return resolved;
+    }
+
+    // Committed transfers whose shards have not both confirmed
+    public int unfinished() {
+        synchronized (logLock) {
+            int n = 0;
+            for (Decision d : decisions.values()) if (!d.done) n++;
+            return n;
+        }
+    }
+
+    // ---------------- Decision log ----------------
+    // Layout: int magic, then records of [int length][byte kind, long epochMillis,
+    // modified-UTF-8 transfer id][int crc32 of the body]. A torn tail is cut off on
+    // open. After a failed write the file's tail is unknown, so the coordinator stops
+    // deciding until it is restarted and reads back what actually reached the disk.
+
+    private boolean committed(String id) {
+        synchronized (logLock) {
+            return decisions.containsKey(id);
+        }
+    }
+
+    private void checkLog() throws BankException {
+        IOException failure = logFailure;
+        if (failure != null) throw new BankException("Decision log failed, restart the coordinator: " + failure.getMessage());
+    }
+
+    // A COMMIT record is forced before it returns; a lost DONE only means a repeated commit
+    private void logDecision(byte kind, String id) throws IOException {
+        synchronized (logLock) {
+            if (logFailure != null) throw logFailure;
+            long now = System.currentTimeMillis();
+            try {
+                writeRecord(log, kind, now, id);
+                if (kind == COMMIT) log.force(false);
+            } catch (IOException e) {
+                logFailure = e;
+                throw e;
+            }
+            if (kind == COMMIT) {
+                decisions.put(id, new Decision(now));
+            } else {
+                Decision d = decisions.get(id);
+                if (d != null) d.done = true;
+            }
+        }
+    }
+
+    private static void writeRecord(FileChannel ch, byte kind, long millis, String id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeByte(kind);
+        body.writeLong(millis);
+        body.writeUTF(id);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        ByteBuffer buf = ByteBuffer.allocate(4 + bytes.size() + 4);
+        buf.putInt(bytes.size()).put(bytes.toByteArray()).putInt((int) crc.getValue());
+        buf.flip();
+        while (buf.hasRemaining()) ch.write(buf, ch.size());
+    }
+
+    private void readLog() throws IOException {
+        long size = log.size();
+        if (size == 0) {
+            ByteBuffer magic = ByteBuffer.allocate(4).putInt(LOG_MAGIC);
+            magic.flip();
+            while (magic.hasRemaining()) log.write(magic, 0);
+            log.force(true);
+            return;
+        }
+        long good;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(logFile), 64 * 1024))) {
+            if (size < 4 || in.readInt() != LOG_MAGIC) throw new IOException(logFile + " is not a decision log");
+            good = 4;
+            while (true) {
+                int len;
+                byte[] body;
+                int stored;
+                try {
+                    len = in.readInt();
+                    if (len < 1 || len > MAX_LOG_RECORD) break;
+                    body = new byte[len];
+                    in.readFully(body);
+                    stored = in.readInt();
+                } catch (EOFException torn) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if (stored != (int) crc.getValue()) break;
+                DataInputStream r = new DataInputStream(new ByteArrayInputStream(body));
+                byte kind = r.readByte();
+                long millis = r.readLong();
+                String id = r.readUTF();
+                if (kind == COMMIT) {
+                    decisions.put(id, new Decision(millis));
+                } else if (kind == DONE) {
+                    Decision d = decisions.get(id);
+                    if (d != null) d.done = true;
+                }
+                good += 4 + len + 4;
+            }
+        }
+        if (good < size) log.truncate(good);
+    }
+
+    // Rewrites the log with the transfers still to finish and the keyed ones a retry may
+    // still ask about
+    private void compactLog() throws IOException {
+        synchronized (logLock) {
+            if (logFailure != null) throw logFailure;
+            long cutoff = System.currentTimeMillis() - IdempotencyCache.DEFAULT_TTL_MILLIS;
+            decisions.entrySet().removeIf(d -> d.getValue().done
+                    && (!d.getKey().startsWith("k:") || d.getValue().millis < cutoff));
+            File tmp = new File(logFile.getPath() + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer magic = ByteBuffer.allocate(4).putInt(LOG_MAGIC);
+                magic.flip();
+                while (magic.hasRemaining()) ch.write(magic);
+                for (Map.Entry<String, Decision> d : decisions.entrySet()) {
+                    writeRecord(ch, COMMIT, d.getValue().millis, d.getKey());
+                    if (d.getValue().done) writeRecord(ch, DONE, d.getValue().millis, d.getKey());
+                }
+                ch.force(true);
+            }
+            log.close();
+            Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            log = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    // ---------------- Lifecycle ----------------
+
+    // Checkpoints shards in this process and compacts the decision log; shards in
+    // other processes checkpoint on their own
+    public void saveState() {
+        for (Shard s : shards) s.saveState();
+        try {
+            compactLog();
+        } catch (IOException e) {
+            System.err.println("Failed to compact decision log: " + e.getMessage());
+        }
+    }
+
+    // Stops recovery and releases the shards and the log. Does not checkpoint.
+    @Override
+    public void close() throws IOException {
+        if (recovery != null) {
+            recovery.shutdown();
+            try {
+                recovery.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        IOException first = null;
+        for (Shard s : shards) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                if (first == null) first = e;
+            }
+        }
+        synchronized (logLock) {
+            log.close();
+        }
+        lockChannel.close();
+        if (first != null) throw first;
+    }
+
+    // ---------------- Shards ----------------
+
+    // What the coordinator needs from one shard; failures to reach it are BankExceptions
+    interface Shard extends Closeable {
+        int createAccount(String fullName, String governmentId, long initialDeposit, String key) throws BankException;
+        void deposit(int account, long amount, String key) throws BankException;
+        void withdraw(int account, long amount, String key) throws BankException;
+        void transfer(int from, int to, long amount, String key) throws BankException;
+        long getBalance(int account) throws BankException;
+        String getName(int account) throws BankException;
+        List<Transaction> getMiniStatement(int account, int n) throws BankException;
+        void prepareDebit(String transferId, int from, int to, long amount) throws BankException;
+        void prepareCredit(String transferId, int to, int from, long amount) throws BankException;
+        void commitPrepared(String transferId) throws BankException;
+        void abortPrepared(String transferId) throws BankException;
+        List<String> inDoubt() throws BankException;
+        void saveState();
+    }
+
+    // A Bank in this process
+    static final class LocalShard implements Shard {
+        final Bank bank;
+
+        LocalShard(Bank bank) { this.bank = bank; }
+
+        public int createAccount(String fullName, String governmentId, long initialDeposit, String key)
+                throws BankException {
+            try {
+                return bank.createAccount(fullName, governmentId, initialDeposit, key).getAccountNumber();
+            } catch (IOException e) {
+                throw new BankException("Failed to create account: " + e.getMessage());
+            }
+        }
+
+        public void deposit(int account, long amount, String key) throws BankException { bank.deposit(account, amount, key); }
+        public void withdraw(int account, long amount, String key) throws BankException { bank.withdraw(account, amount, key); }
+        public void transfer(int from, int to, long amount, String key) throws BankException { bank.transfer(from, to, amount, key); }
+        public long getBalance(int account) throws BankException { return bank.getBalance(account); }
+        public String getName(int account) throws BankException { return bank.getName(account); }
+        public List<Transaction> getMiniStatement(int account, int n) throws BankException { return bank.getMiniStatement(account, n); }
+        public void prepareDebit(String id, int from, int to, long amount) throws BankException { bank.prepareDebit(id, from, to, amount); }
+        public void prepareCredit(String id, int to, int from, long amount) throws BankException { bank.prepareCredit(id, to, from, amount); }
+        public void commitPrepared(String id) throws BankException { bank.commitPrepared(id); }
+        public void abortPrepared(String id) throws BankException { bank.abortPrepared(id); }
+        public List<String> inDoubt() { return bank.inDoubt(); }
+        public void saveState() { bank.saveState(); }
+        public void close() throws IOException { bank.close(); }
+    }
+
+    // A Bank in another process, reached through its BankServer on a loopback port.
+    // Requests go over pooled connections, one at a time on each.
+    static final class RemoteShard implements Shard {
+        private static final int TIMEOUT_MILLIS = 30_000;
+        private static final String SEP = "\t";
+
+        private final int port;
+        private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+        private volatile boolean closed;
+
+        RemoteShard(int port) { this.port = port; }
+
+        public int createAccount(String fullName, String governmentId, long initialDeposit, String key)
+                throws BankException {
+            return Integer.parseInt(call(key, "CREATE", fullName, governmentId, Money.format(initialDeposit))[2]);
+        }
+
+        public void deposit(int account, long amount, String key) throws BankException {
+            call(key, "DEPOSIT", String.valueOf(account), Money.format(amount));
+        }
+
+        public void withdraw(int account, long amount, String key) throws BankException {
+            call(key, "WITHDRAW", String.valueOf(account), Money.format(amount));
+        }
+
+        public void transfer(int from, int to, long amount, String key) throws BankException {
+            call(key, "TRANSFER", String.valueOf(from), String.valueOf(to), Money.format(amount));
+        }
+
+        public long getBalance(int account) throws BankException {
+            return Money.parse(call(null, "BALANCE", String.valueOf(account))[2]);
+        }
+
+        public String getName(int account) throws BankException {
+            return call(null, "BALANCE", String.valueOf(account))[3];
+        }
+
+        public List<Transaction> getMiniStatement(int account, int n) throws BankException {
+            String[] r = call(null, "STATEMENT", String.valueOf(account), String.valueOf(n));
+            List<Transaction> txns = new ArrayList<>(Integer.parseInt(r[2]));
+            for (int i = 3; i < r.length; i++) {
+                String[] t = r[i].split(",");
+                txns.add(new Transaction(account, Transaction.Type.valueOf(t[1]), Money.parse(t[2]),
+                        Integer.parseInt(t[3]), false, LocalDateTime.parse(t[0])));
+            }
+            return txns;
+        }
+
+        public void prepareDebit(String id, int from, int to, long amount) throws BankException {
+            call(null, "PREPARE_DEBIT", id, String.valueOf(from), String.valueOf(to), Money.format(amount));
+        }
+
+        public void prepareCredit(String id, int to, int from, long amount) throws BankException {
+            call(null, "PREPARE_CREDIT", id, String.valueOf(to), String.valueOf(from), Money.format(amount));
+        }
+
+        public void commitPrepared(String id) throws BankException { call(null, "COMMIT", id); }
+        public void abortPrepared(String id) throws BankException { call(null, "ABORT", id); }
+
+        public List<String> inDoubt() throws BankException {
+            String[] r = call(null, "INDOUBT");
+            return new ArrayList<>(Arrays.asList(r).subList(3, r.length));
+        }
+
+        public void saveState() { }
+
+        public void close() {
+            closed = true;
+            for (Connection c; (c = idle.poll()) != null; ) c.close();
+        }
+
+        // Sends one request and returns the reply's fields; ERR replies become the matching exception
+        private String[] call(String key, String... fields) throws BankException {
+            if (closed) throw new BankException("Shard on port " + port + " is closed");
+            Connection c = idle.poll();
+            try {
+                if (c == null) c = new Connection(port);
+                String[] reply = c.call(key, fields);
+                idle.add(c);
+                c = null;
+                if ("ERR".equals(reply[1])) throw error(reply[2], reply.length > 3 ? reply[3] : "");
+                return reply;
+            } catch (IOException | RuntimeException e) {
+                throw new BankException("Shard on port " + port + " unavailable: " + e.getMessage());
+            } finally {
+                if (c != null) c.close();
+            }
+        }
+
+        private static BankException error(String code, String message) {
+            switch (code) {
+                case BankServer.NOT_FOUND: return new AccountNotFoundException(message);
+                case BankServer.INSUFFICIENT_FUNDS: return new InsufficientBalanceException(message);
+                case BankServer.KYC_REJECTED: return new KYCException(message);
+                default: return new BankException(message);
+            }
+        }
+
+        private static final class Connection {
+            private final Socket socket;
+            private final BufferedReader in;
+            private final Writer out;
+            private long nextId;
+
+            Connection(int port) throws IOException {
+                socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            }
+
+            String[] call(String key, String... fields) throws IOException {
+                String id = Long.toString(++nextId);
+                out.write(id);
+                for (String f : fields) out.append(SEP).append(f);
+                if (key != null) out.append(SEP).append("key=").append(key);
+                out.write('\n');
+                out.flush();
+                String line = in.readLine();
+                if (line == null) throw new EOFException("connection closed");
+                String[] reply = line.split(SEP, -1);
+                if (reply.length < 2 || !id.equals(reply[0])) throw new IOException("Unexpected reply: " + line);
+                return reply;
+            }
+
+            void close() {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // java ShardedBank shard <dataDir> <index> <port>  serves shard index through BankServer
+    // java ShardedBank recover <dir> <port>...         resolves transfers left in doubt by a stopped
+    //                                                  coordinator whose log is under dir
+    public static void main(String[] args) throws IOException {
+        if (args.length == 4 && "shard".equals(args[0])) {
+            int index = Integer.parseInt(args[2]);
+            if (index < 0 || index >= MAX_SHARDS) throw new IllegalArgumentException("Shard index must be 0.." + (MAX_SHARDS - 1));
+            Bank bank = openShard(new File(args[1]), index);
+            BankServer srv = new BankServer(bank, Integer.parseInt(args[3]));
+            System.out.println(bank.getName() + " listening on 127.0.0.1:" + srv.getPort()
+                    + " (state loaded in " + bank.getLoadTimeMillis() + " ms)");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    srv.close();
+                    bank.saveState();
+                    bank.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to shut down cleanly: " + e.getMessage());
+                }
+            }, "shard-shutdown"));
+        } else if (args.length >= 3 && "recover".equals(args[0])) {
+            List<Shard> shards = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) shards.add(new RemoteShard(Integer.parseInt(args[i])));
+            ShardedBank sb = new ShardedBank(new File(args[1]), shards);
+            try {
+                int resolved = sb.recover();
+                sb.compactLog();
+                System.out.println(resolved + " in-doubt transfer sides resolved, "
+                        + sb.unfinished() + " committed transfers unfinished");
+            } finally {
+                sb.close();
+            }
+        } else {
+            System.err.println("usage: ShardedBank shard <dataDir> <index> <port>");
+            System.err.println("       ShardedBank recover <dir> <port>...");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// ---------------- Snapshot class ----------------
+// Binary checkpoint of the whole bank: accounts plus the length of transaction
+// history they correspond to, in one file, so the two can never come from
+// different points in time. The history itself lives in the TransactionStore.
+//
+// Layout (big-endian):
+//   int magic 'BNKS', short version, long journalSeq, int nextAccountNumber
+//   int accountCount,  then per account: int accNo, long balance, str name, str govId, long lastTxn
+//   long txnCount      (number of TransactionStore records covered)
+//   int keyCount,      then per idempotency key: str key, long seq, byte op, long timestamp,
+//                      int account, int counterparty, long amount, str name, str govId
+//   int dayCount,      then per day of history: long epochDay, and per Transaction.Type
+//                      in ordinal order: long count, long amount
+//   int preparedCount, then per cross-shard transfer prepared here and not yet resolved,
+//                      the same fields as a key entry, the key being the transfer id
+//   int accrualCount,  then per accrual partition that has posted: int partition,
+//                      long epochDay of the newest business date posted
+//   int crc32 of every byte before it
+// where str is a short length followed by UTF-8 bytes and lastTxn is the store
+// index of the account's newest record (-1 if none).
+//
+// Older versions are still read. Version 6 ends after the prepared transfers,
+// so the caller works the accrual dates out from the idempotency keys it still
+// holds. Version 5 ends after the daily rollups and has no prepared transfers.
+// Version 4 ends after the keys and has no daily rollups, so the caller
+// recounts them; earlier ones also have no idempotency keys: version 3 ends
+// after txnCount, version 2 also lacks lastTxn, and version 1 also carried the
+// history inline after txnCount (int accNo, byte type, long amount, long
+// epochMillis, str note per record), which read() moves into the store. For
+// versions 1 and 2, State.linked is false and the caller must relink the
+// history.
+//
+// The file is written to a temp sibling, forced, and renamed over the old one,
+// so a crash mid-write leaves the previous snapshot untouched.
+final class Snapshot {
+    static final int MAGIC = 0x424E4B53; // "BNKS"
+    static final short VERSION = 7;
+    private static final short VERSION_INLINE_HISTORY = 1;
+    private static final short VERSION_LINKED = 3; // first with lastTxn
+    private static final short VERSION_KEYED = 4;  // first with idempotency keys
+    private static final short VERSION_ROLLUPS = 5; // first with daily rollups
+    private static final short VERSION_PREPARED = 6; // first with prepared transfers
+    private static final int BUFFER = 256 * 1024;
+
+    // Everything a snapshot holds, as read back by read()
+    static final class State {
+        final long journalSeq;
+        final int nextAccountNumber;
+        final AccountTable accounts;
+        final boolean linked; // accounts carry tail pointers and store records carry prev links
+        final List<Journal.Entry> idempotent; // committed entries with their keys, oldest first
+        final Map<Long, long[]> days;         // Aggregates daily rollups, null if not recorded
+        final List<Journal.Entry> prepared;   // PREPARE_OUT/PREPARE_IN entries still in doubt
+        final Map<Integer, Long> accrued;     // accrual partition -> newest business date posted, as an epoch day
+
+        State(long journalSeq, int nextAccountNumber, AccountTable accounts, boolean linked,
+              List<Journal.Entry> idempotent, Map<Long, long[]> days, List<Journal.Entry> prepared,
+              Map<Integer, Long> accrued) {
+            this.journalSeq = journalSeq;
+            this.nextAccountNumber = nextAccountNumber;
+            this.accounts = accounts;
+            this.linked = linked;
+            this.idempotent = idempotent;
+            this.days = days;
+            this.prepared = prepared;
+            this.accrued = accrued;
+        }
+    }
+
+    private Snapshot() { }
+
+    public static void write(File file, long journalSeq, int nextAccountNumber,
+                             Collection<Account> accounts, long txnCount,
+                             List<Journal.Entry> idempotent, Map<Long, long[]> days,
+                             Collection<Journal.Entry> prepared, Map<Integer, Long> accrued) throws IOException {
+        Path target = file.toPath();
+        Path tmp = target.resolveSibling(file.getName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer w = new Writer(ch);
+            w.putInt(MAGIC);
+            w.putShort(VERSION);
+            w.putLong(journalSeq);
+            w.putInt(nextAccountNumber);
+            w.putInt(accounts.size());
+            for (Account a : accounts) {
+                w.putInt(a.getAccountNumber());
+                w.putLong(a.getBalance());
+                w.putString(a.getHolderName());
+                w.putString(a.getGovernmentId());
+                w.putLong(a.getLastTransaction());
+            }
+            w.putLong(txnCount);
+            w.putInt(idempotent.size());
+            for (Journal.Entry e : idempotent) putEntry(w, e);
+            w.putInt(days.size());
+            for (Map.Entry<Long, long[]> d : days.entrySet()) {
+                w.putLong(d.getKey());
+                for (long v : d.getValue()) w.putLong(v);
+            }
+            w.putInt(prepared.size());
+            for (Journal.Entry e : prepared) putEntry(w, e);
+            w.putInt(accrued.size());
+            for (Map.Entry<Integer, Long> a : accrued.entrySet()) {
+                w.putInt(a.getKey());
+                w.putLong(a.getValue());
+            }
+            w.finish();
+            ch.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(target);
+    }
+
+    // Reads accounts and lines the store up with the history length this snapshot covers
+    public static State read(File file, TransactionStore store) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            verifyChecksum(ch);
+            Reader r = new Reader(ch);
+            if (r.getInt() != MAGIC) throw new IOException(file + " is not a bank snapshot");
+            short version = r.getShort();
+            if (version < VERSION_INLINE_HISTORY || version > VERSION) throw new IOException("Unsupported snapshot version " + version);
+            long seq = r.getLong();
+            int next = r.getInt();
+
+            int accountCount = r.getInt();
+            AccountTable accounts = new AccountTable();
+            for (int i = 0; i < accountCount; i++) {
+                int accNo = r.getInt();
+                long balance = r.getLong();
+                String name = r.getString();
+                String govId = r.getString();
+                Account a = new Account(accNo, name, govId, balance);
+                if (version >= VERSION_LINKED) a.setLastTransaction(r.getLong());
+                accounts.put(a);
+            }
+
+            long txnCount = r.getLong();
+            if (version != VERSION_INLINE_HISTORY) {
+                store.truncate(txnCount);
+            } else {
+                store.truncate(0);
+                Transaction.Type[] types = Transaction.Type.values();
+                for (long i = 0; i < txnCount; i++) {
+                    int accNo = r.getInt();
+                    Transaction.Type type = types[r.get()];
+                    long amount = r.getLong();
+                    long ts = r.getLong();
+                    String note = r.getString();
+                    int counterparty = type == Transaction.Type.TRANSFER_IN || type == Transaction.Type.TRANSFER_OUT
+                            ? Integer.parseInt(note.substring(note.lastIndexOf(' ') + 1)) : 0;
+                    store.append(accNo, type, amount, counterparty, ts, "Initial deposit".equals(note), -1);
+                }
+            }
+            List<Journal.Entry> idempotent = new ArrayList<>();
+            if (version >= VERSION_KEYED) {
+                for (int i = 0, n = r.getInt(); i < n; i++) idempotent.add(getEntry(r));
+            }
+            Map<Long, long[]> days = null;
+            if (version >= VERSION_ROLLUPS) {
+                days = new HashMap<>();
+                int width = 2 * Transaction.Type.values().length;
+                for (int i = 0, n = r.getInt(); i < n; i++) {
+                    long epochDay = r.getLong();
+                    long[] day = new long[width];
+                    for (int k = 0; k < width; k++) day[k] = r.getLong();
+                    days.put(epochDay, day);
+                }
+            }
+            List<Journal.Entry> prepared = new ArrayList<>();
+            if (version >= VERSION_PREPARED) {
+                for (int i = 0, n = r.getInt(); i < n; i++) prepared.add(getEntry(r));
+            }
+            Map<Integer, Long> accrued = new HashMap<>();
+            if (version == VERSION) {
+                for (int i = 0, n = r.getInt(); i < n; i++) {
+                    int partition = r.getInt();
+                    accrued.put(partition, r.getLong());
+                }
+            }
+            return new State(seq, next, accounts, version >= VERSION_LINKED, idempotent, days, prepared, accrued);
+        }
+    }
+
+    private static void putEntry(Writer w, Journal.Entry e) throws IOException {
+        w.putString(e.idempotencyKey);
+        w.putLong(e.seq);
+        w.put((byte) e.op.ordinal());
+        w.putLong(e.timestamp);
+        w.putInt(e.account);
+        w.putInt(e.counterparty);
+        w.putLong(e.amount);
+        w.putString(e.holderName);
+        w.putString(e.governmentId);
+    }
+
+    private static Journal.Entry getEntry(Reader r) throws IOException {
+        String key = r.getString();
+        long seq = r.getLong();
+        Journal.Op op = Journal.Op.values()[r.get()];
+        long ts = r.getLong();
+        int account = r.getInt();
+        int counterparty = r.getInt();
+        long amount = r.getLong();
+        String name = r.getString();
+        String govId = r.getString();
+        return new Journal.Entry(seq, op, ts, account, counterparty, amount, name, govId, key);
+    }
+
+    // Streams the body through CRC32 and compares it with the trailer before anything is parsed
+    private static void verifyChecksum(FileChannel ch) throws IOException {
+        long size = ch.size();
+        if (size < 4) throw new IOException("Snapshot truncated");
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER);
+        CRC32 crc = new CRC32();
+        long pos = 0, body = size - 4;
+        while (pos < body) {
+            buf.clear();
+            if (body - pos < buf.capacity()) buf.limit((int) (body - pos));
+            int n = ch.read(buf, pos);
+            if (n < 0) throw new IOException("Snapshot truncated");
+            buf.flip();
+            crc.update(buf);
+            pos += n;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(4);
+        while (trailer.hasRemaining()) {
+            if (ch.read(trailer, body + trailer.position()) < 0) throw new IOException("Snapshot truncated");
+        }
+        if (trailer.getInt(0) != (int) crc.getValue()) throw new IOException("Snapshot checksum mismatch");
+    }
+
+    // Makes the rename itself durable; not every platform can open a directory, which is fine
+    private static void syncDirectory(Path file) {
+        Path dir = file.toAbsolutePath().getParent();
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException | UnsupportedOperationException ignored) {
+        }
+    }
+
+    // Buffered channel writer that checksums every byte it emits
+    private static final class Writer {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER);
+        private final CRC32 crc = new CRC32();
+
+        Writer(FileChannel ch) { this.ch = ch; }
+
+        void put(byte b) throws IOException { ensure(1); buf.put(b); }
+        void putShort(short s) throws IOException { ensure(2); buf.putShort(s); }
+        void putInt(int i) throws IOException { ensure(4); buf.putInt(i); }
+        void putLong(long l) throws IOException { ensure(8); buf.putLong(l); }
+
+        void putString(String s) throws IOException {
+            byte[] b = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+            if (b.length > 0xFFFF) throw new IOException("String too long for snapshot: " + b.length + " bytes");
+            putShort((short) b.length);
+            ensure(b.length);
+            buf.put(b);
+        }
+
+        void finish() throws IOException {
+            drain();
+            buf.putInt((int) crc.getValue());
+            buf.flip();
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buf.remaining() < n) drain();
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            crc.update(buf.duplicate());
+            while (buf.hasRemaining()) ch.write(buf);
+            buf.clear();
+        }
+    }
+
+    // Buffered sequential channel reader; the checksum was already verified
+    private static final class Reader {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER);
+        private byte[] scratch = new byte[256];
+
+        Reader(FileChannel ch) throws IOException {
+            this.ch = ch;
+            ch.position(0);
+            buf.limit(0);
+        }
+
+        byte get() throws IOException { ensure(1); return buf.get(); }
+        short getShort() throws IOException { ensure(2); return buf.getShort(); }
+        int getInt() throws IOException { ensure(4); return buf.getInt(); }
+        long getLong() throws IOException { ensure(8); return buf.getLong(); }
+
+        String getString() throws IOException {
+            int len = getShort() & 0xFFFF;
+            if (len == 0) return null;
+            if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+            ensure(len);
+            buf.get(scratch, 0, len);
+            return new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buf.remaining() >= n) return;
+            buf.compact();
+            while (buf.position() < n) {
+                if (ch.read(buf) < 0) throw new EOFException("Snapshot truncated");
+            }
+            buf.flip();
+        }
+    }
+}
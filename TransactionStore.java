@@ -0,0 +1,233 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// ---------------- TransactionStore class ----------------
+// Off-heap transaction history. Records live in fixed-size segment files that
+// are memory-mapped and laid out column by column:
+//
+//   [int account x N][byte type x N][long amount x N][long epochMillis x N][int counterparty x N]
+//   [long prev x N]
+//
+// so a record is addressed by its global index alone and scans over one column
+// touch only that column's pages. 'prev' links each record to the previous one
+// for the same account (stored +1, so 0 means none), which lets an account's
+// history be walked backwards from its latest index without any scan. Nothing
+// about a record lives on the heap; get() builds a Transaction only when a
+// caller asks for one.
+//
+// Appends only ever write to the last segment. Once a segment is full it is
+// sealed: the next checkpoint forces it and writes its CRC32 to a txn-NNNNNN.crc
+// sidecar, after which checkpoints leave it alone. Its time range is worked
+// out on first use so range scans can skip it whole.
+//
+// The store does not persist its own length. The snapshot records how many
+// records it covers and the journal re-appends anything after that, so on open
+// the caller passes that count back through truncate().
+class TransactionStore implements Closeable {
+    static final int RECORDS_PER_SEGMENT = 1 << 16;
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_MASK = RECORDS_PER_SEGMENT - 1;
+
+    // column offsets inside a segment
+    private static final int ACCOUNT_COL = 0;
+    private static final int TYPE_COL = ACCOUNT_COL + 4 * RECORDS_PER_SEGMENT;
+    private static final int AMOUNT_COL = TYPE_COL + RECORDS_PER_SEGMENT;
+    private static final int TIME_COL = AMOUNT_COL + 8 * RECORDS_PER_SEGMENT;
+    private static final int COUNTERPARTY_COL = TIME_COL + 8 * RECORDS_PER_SEGMENT;
+    // added after the first release; older segment files are extended with zeroes when mapped
+    private static final int PREV_COL = COUNTERPARTY_COL + 4 * RECORDS_PER_SEGMENT;
+    private static final int SEGMENT_BYTES = PREV_COL + 8 * RECORDS_PER_SEGMENT;
+
+    // High bit of the type byte marks the opening deposit of an account
+    private static final int OPENING = 0x80;
+    private static final Transaction.Type[] TYPES = Transaction.Type.values();
+
+    private final File dir;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile long size;
+    // leading segments that are full, forced and checksummed; force() starts after them
+    private volatile int cleanSegments;
+    private volatile boolean relinked; // setPrev() rewrote sealed segments
+    // [min, max] timestamp of each sealed segment, filled on first use; guarded by this
+    private long[] minTime = new long[0], maxTime = new long[0];
+    private boolean[] ranged = new boolean[0];
+
+    public TransactionStore(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        int n = 0;
+        while (segmentFile(n).exists()) n++;
+        MappedByteBuffer[] segs = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) segs[i] = map(i);
+        segments = segs;
+        int clean = 0;
+        while (clean < n && checksumFile(clean).exists()) clean++;
+        cleanSegments = clean;
+    }
+
+    public long size() { return size; }
+
+    // Appends one record and returns its index. Appends are serialized; readers are not.
+    // prev is the account's previous record index, or -1 if this is its first.
+    public synchronized long append(int account, Transaction.Type type, long amount, int counterparty,
+                                    long epochMillis, boolean opening, long prev) throws IOException {
+        long index = size;
+        int seg = (int) (index >>> SEGMENT_SHIFT);
+        if (seg >= segments.length) grow(seg + 1);
+        MappedByteBuffer b = segments[seg];
+        int slot = (int) (index & SEGMENT_MASK);
+        b.putInt(ACCOUNT_COL + 4 * slot, account);
+        b.put(TYPE_COL + slot, (byte) (type.ordinal() | (opening ? OPENING : 0)));
+        b.putLong(AMOUNT_COL + 8 * slot, amount);
+        b.putLong(TIME_COL + 8 * slot, epochMillis);
+        b.putInt(COUNTERPARTY_COL + 4 * slot, counterparty);
+        b.putLong(PREV_COL + 8 * slot, prev + 1);
+        size = index + 1; // volatile write publishes the record to readers
+        return index;
+    }
+
+    // Drops every record at or after newSize; used to line the store up with a snapshot
+    public synchronized void truncate(long newSize) throws IOException {
+        if (newSize < 0 || newSize > (long) segments.length * RECORDS_PER_SEGMENT) {
+            throw new IOException("Transaction store holds fewer than " + newSize + " records");
+        }
+        size = newSize;
+        int sealedCount = (int) (newSize >>> SEGMENT_SHIFT);
+        cleanSegments = Math.min(cleanSegments, sealedCount);
+        for (int i = sealedCount; i < ranged.length; i++) ranged[i] = false;
+        // segments that will be written again lose their checksum
+        for (int i = sealedCount; checksumFile(i).exists(); i++) Files.delete(checksumFile(i).toPath());
+    }
+
+    // Flushes the mapped pages of every segment not already forced since it was sealed,
+    // and checksums the newly sealed ones; called before a snapshot that counts these records
+    public void force() throws IOException {
+        MappedByteBuffer[] segs = segments;
+        int sealedCount = (int) Math.min(size >>> SEGMENT_SHIFT, segs.length);
+        if (relinked) {
+            relinked = false;
+            cleanSegments = 0;
+        }
+        for (int i = cleanSegments; i < segs.length; i++) segs[i].force();
+        for (int i = cleanSegments; i < sealedCount; i++) writeChecksum(i);
+        if (sealedCount > cleanSegments) cleanSegments = sealedCount;
+    }
+
+    // Full segments; every record in them is below sealedSegments() * RECORDS_PER_SEGMENT
+    public int sealedSegments() {
+        return (int) Math.min(size >>> SEGMENT_SHIFT, segments.length);
+    }
+
+    // Recomputes a sealed segment's CRC32 and compares it with the one written when it
+    // was sealed. Null if it has none yet, i.e. no checkpoint has run since it filled.
+    public Boolean checksumMatches(int seg) throws IOException {
+        File f = checksumFile(seg);
+        if (!f.exists()) return null;
+        byte[] stored = Files.readAllBytes(f.toPath());
+        if (stored.length != 4) return false;
+        return ByteBuffer.wrap(stored).getInt() == checksum(seg);
+    }
+
+    // Index just past the segment holding index
+    public long segmentEnd(long index) {
+        return ((index >>> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT;
+    }
+
+    // Whether the segment holding index can have a record with lo <= timestamp < hi.
+    // Only sealed segments are ruled out; the one being appended to always qualifies.
+    public synchronized boolean segmentMayHold(long index, long lo, long hi) {
+        int seg = (int) (index >>> SEGMENT_SHIFT);
+        if (seg >= size >>> SEGMENT_SHIFT) return true;
+        if (seg >= ranged.length) {
+            int n = Math.max(seg + 1, ranged.length * 2);
+            minTime = Arrays.copyOf(minTime, n);
+            maxTime = Arrays.copyOf(maxTime, n);
+            ranged = Arrays.copyOf(ranged, n);
+        }
+        if (!ranged[seg]) {
+            ByteBuffer b = segments[seg];
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            for (int slot = 0; slot < RECORDS_PER_SEGMENT; slot++) {
+                long t = b.getLong(TIME_COL + 8 * slot);
+                if (t < min) min = t;
+                if (t > max) max = t;
+            }
+            minTime[seg] = min;
+            maxTime[seg] = max;
+            ranged[seg] = true;
+        }
+        return maxTime[seg] >= lo && minTime[seg] < hi;
+    }
+
+    public int account(long index) { return segment(index).getInt(ACCOUNT_COL + 4 * slot(index)); }
+    public Transaction.Type type(long index) { return TYPES[typeByte(index) & ~OPENING]; }
+    public long amount(long index) { return segment(index).getLong(AMOUNT_COL + 8 * slot(index)); }
+    public long timestamp(long index) { return segment(index).getLong(TIME_COL + 8 * slot(index)); }
+    public int counterparty(long index) { return segment(index).getInt(COUNTERPARTY_COL + 4 * slot(index)); }
+    public boolean isOpening(long index) { return (typeByte(index) & OPENING) != 0; }
+    public long prev(long index) { return segment(index).getLong(PREV_COL + 8 * slot(index)) - 1; }
+
+    // Only for relinking history that was written before the prev column existed
+    public void setPrev(long index, long prev) {
+        segment(index).putLong(PREV_COL + 8 * slot(index), prev + 1);
+        relinked = true;
+    }
+
+    public Transaction get(long index) {
+        return new Transaction(account(index), type(index), amount(index), counterparty(index),
+                isOpening(index), Transaction.fromEpochMilli(timestamp(index)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+    }
+
+    private int typeByte(long index) { return segment(index).get(TYPE_COL + slot(index)) & 0xFF; }
+
+    private ByteBuffer segment(long index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Transaction " + index + " of " + size);
+        return segments[(int) (index >>> SEGMENT_SHIFT)];
+    }
+
+    private static int slot(long index) { return (int) (index & SEGMENT_MASK); }
+
+    private void grow(int count) throws IOException {
+        MappedByteBuffer[] segs = Arrays.copyOf(segments, count);
+        for (int i = segments.length; i < count; i++) segs[i] = map(i);
+        segments = segs;
+    }
+
+    private MappedByteBuffer map(int seg) throws IOException {
+        try (FileChannel ch = FileChannel.open(segmentFile(seg).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        }
+    }
+
+    private int checksum(int seg) {
+        CRC32 crc = new CRC32();
+        crc.update(segments[seg].duplicate().clear());
+        return (int) crc.getValue();
+    }
+
+    private void writeChecksum(int seg) throws IOException {
+        Files.write(checksumFile(seg).toPath(), ByteBuffer.allocate(4).putInt(checksum(seg)).array(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE,
+                StandardOpenOption.SYNC);
+    }
+
+    private File checksumFile(int seg) {
+        return new File(dir, String.format("txn-%06d.crc", seg));
+    }
+
+    private File segmentFile(int seg) {
+        return new File(dir, String.format("txn-%06d.seg", seg));
+    }
+}
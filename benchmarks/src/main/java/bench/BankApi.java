@@ -0,0 +1,93 @@
+package bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+
+// The bank classes live in the default package, which a named package cannot
+// import and which JMH refuses to host benchmarks in. They are bound here once
+// through method handles; static final handles called with invokeExact are
+// inlined by the JIT, so the indirection does not show up in the numbers.
+final class BankApi {
+    private static final MethodHandle NEW_BANK;
+    private static final MethodHandle LOAD_STATE, SAVE_STATE, CLOSE, ENABLE_GROUP_COMMIT;
+    private static final MethodHandle CREATE_ACCOUNT, ACCOUNT_NUMBER;
+    private static final MethodHandle DEPOSIT, WITHDRAW, TRANSFER, GET_BALANCE, GET_MINI_STATEMENT;
+
+    static {
+        try {
+            Class<?> bank = Class.forName("Bank");
+            Class<?> account = Class.forName("Account");
+            NEW_BANK = constructor(bank.getConstructor(String.class, File.class));
+            LOAD_STATE = method(bank, "loadState");
+            SAVE_STATE = method(bank, "saveState");
+            CLOSE = method(bank, "close");
+            ENABLE_GROUP_COMMIT = method(bank, "enableGroupCommit", int.class, long.class);
+            CREATE_ACCOUNT = method(bank, "createAccount", String.class, String.class, long.class);
+            ACCOUNT_NUMBER = method(account, "getAccountNumber");
+            DEPOSIT = method(bank, "deposit", int.class, long.class);
+            WITHDRAW = method(bank, "withdraw", int.class, long.class);
+            TRANSFER = method(bank, "transfer", int.class, int.class, long.class);
+            GET_BALANCE = method(bank, "getBalance", int.class);
+            GET_MINI_STATEMENT = method(bank, "getMiniStatement", int.class, int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private BankApi() { }
+
+    static Object newBank(String name, File dataDir) throws Throwable {
+        return (Object) NEW_BANK.invokeExact((Object) name, (Object) dataDir);
+    }
+
+    static void loadState(Object bank) throws Throwable { LOAD_STATE.invokeExact(bank); }
+    static void saveState(Object bank) throws Throwable { SAVE_STATE.invokeExact(bank); }
+    static void close(Object bank) throws Throwable { CLOSE.invokeExact(bank); }
+
+    static void enableGroupCommit(Object bank, int maxBatch, long maxWaitMillis) throws Throwable {
+        ENABLE_GROUP_COMMIT.invokeExact(bank, maxBatch, maxWaitMillis);
+    }
+
+    static int createAccount(Object bank, String name, String govId, long initialDeposit) throws Throwable {
+        Object acc = (Object) CREATE_ACCOUNT.invokeExact(bank, (Object) name, (Object) govId, initialDeposit);
+        return (int) ACCOUNT_NUMBER.invokeExact(acc);
+    }
+
+    static void deposit(Object bank, int acc, long amount) throws Throwable {
+        DEPOSIT.invokeExact(bank, acc, amount);
+    }
+
+    static void withdraw(Object bank, int acc, long amount) throws Throwable {
+        WITHDRAW.invokeExact(bank, acc, amount);
+    }
+
+    static void transfer(Object bank, int from, int to, long amount) throws Throwable {
+        TRANSFER.invokeExact(bank, from, to, amount);
+    }
+
+    static long getBalance(Object bank, int acc) throws Throwable {
+        return (long) GET_BALANCE.invokeExact(bank, acc);
+    }
+
+    static List<?> getMiniStatement(Object bank, int acc, int n) throws Throwable {
+        return (List<?>) (Object) GET_MINI_STATEMENT.invokeExact(bank, acc, n);
+    }
+
+    // Reference types are erased to Object so call sites do not need the hidden classes
+    private static MethodHandle method(Class<?> owner, String name, Class<?>... params) throws ReflectiveOperationException {
+        Method m = owner.getMethod(name, params);
+        m.setAccessible(true);
+        MethodHandle h = MethodHandles.lookup().unreflect(m);
+        return h.asType(h.type().erase());
+    }
+
+    private static MethodHandle constructor(Constructor<?> c) throws IllegalAccessException {
+        c.setAccessible(true);
+        MethodHandle h = MethodHandles.lookup().unreflectConstructor(c);
+        return h.asType(h.type().erase());
+    }
+}
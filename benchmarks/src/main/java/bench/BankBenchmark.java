@@ -0,0 +1,97 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Throughput of the per-account operations. Thread count comes from JMH (-t, or
+// BenchmarkMain's sweep). 'access' picks the key distribution: every thread on
+// the same pair of accounts (hot) or each thread on its own pair (uncontended).
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BankBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class BankState {
+        @Param({"1000", "100000"})
+        public int accountCount;
+
+        @Param({"0", "100000"})
+        public int historySize;
+
+        @Param({"uncontended", "hot"})
+        public String access;
+
+        // sync forces every record; group shares one fsync per batch
+        @Param({"sync", "group"})
+        public String commit;
+
+        File dir;
+        Object bank;
+        final AtomicInteger nextThread = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp(BenchmarkParams params) throws Throwable {
+            if (2 * params.getThreads() > accountCount) {
+                throw new IllegalStateException("need at least two accounts per thread");
+            }
+            dir = Fixture.build(accountCount, historySize);
+            bank = BankApi.newBank("bench", dir);
+            BankApi.loadState(bank);
+            if (commit.equals("group")) BankApi.enableGroupCommit(bank, 256, 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable {
+            BankApi.close(bank);
+            Fixture.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Accounts {
+        int from, to;
+
+        @Setup(Level.Trial)
+        public void pick(BankState s) {
+            if (s.access.equals("hot")) {
+                from = Fixture.FIRST_ACCOUNT;
+            } else {
+                from = Fixture.FIRST_ACCOUNT + 2 * s.nextThread.getAndIncrement();
+            }
+            to = from + 1;
+        }
+    }
+
+    @Benchmark
+    public void deposit(BankState s, Accounts a) throws Throwable {
+        BankApi.deposit(s.bank, a.from, 1);
+    }
+
+    @Benchmark
+    public void withdraw(BankState s, Accounts a) throws Throwable {
+        BankApi.withdraw(s.bank, a.from, 1);
+    }
+
+    @Benchmark
+    public void transfer(BankState s, Accounts a) throws Throwable {
+        BankApi.transfer(s.bank, a.from, a.to, 1);
+    }
+
+    @Benchmark
+    public long getBalance(BankState s, Accounts a) throws Throwable {
+        return BankApi.getBalance(s.bank, a.from);
+    }
+
+    @Benchmark
+    public void getMiniStatement(BankState s, Accounts a, Blackhole bh) throws Throwable {
+        bh.consume(BankApi.getMiniStatement(s.bank, a.from, 10));
+    }
+}
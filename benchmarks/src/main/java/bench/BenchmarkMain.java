@@ -0,0 +1,36 @@
+package bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the operation benchmarks once per thread count, then the persistence ones.
+// Usage: java -cp benchmarks.jar bench.BenchmarkMain [thread counts...] [-- JMH options]
+public final class BenchmarkMain {
+    private BenchmarkMain() { }
+
+    public static void main(String[] args) throws Exception {
+        int split = 0;
+        while (split < args.length && !args[split].equals("--")) split++;
+        int[] threads = new int[split];
+        for (int i = 0; i < split; i++) threads[i] = Integer.parseInt(args[i]);
+        if (threads.length == 0) {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            threads = cpus >= 4 ? new int[] {1, 4, cpus} : new int[] {1, cpus};
+        }
+        String[] jmhArgs = split < args.length
+                ? java.util.Arrays.copyOfRange(args, split + 1, args.length) : new String[0];
+        CommandLineOptions cli = new CommandLineOptions(jmhArgs);
+
+        for (int t : threads) {
+            Options opts = new OptionsBuilder()
+                    .parent(cli)
+                    .include(BankBenchmark.class.getSimpleName())
+                    .threads(t)
+                    .build();
+            new Runner(opts).run();
+        }
+        new Runner(new OptionsBuilder().parent(cli).include(PersistenceBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,54 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// Builds a bank on disk with a given number of accounts and transactions, then
+// checkpoints it so every benchmark starts from a freshly loaded state.
+final class Fixture {
+    static final int FIRST_ACCOUNT = 1001;
+    // large enough that no benchmark can drain an account to MIN_BALANCE
+    static final long OPENING_BALANCE = 1_000_000_000_000L;
+
+    private Fixture() { }
+
+    static File build(int accountCount, int historySize) throws Throwable {
+        File dir = Files.createTempDirectory("bank-bench").toFile();
+        Object bank = BankApi.newBank("bench", dir);
+        BankApi.loadState(bank);
+        // group commit plus parallel callers keeps setup from paying one fsync per record
+        BankApi.enableGroupCommit(bank, 1024, 1);
+        run(IntStream.range(0, accountCount), i ->
+                BankApi.createAccount(bank, "Holder " + i, "ID-" + i, OPENING_BALANCE));
+        run(IntStream.range(0, historySize), i ->
+                BankApi.deposit(bank, FIRST_ACCOUNT + i % accountCount, 100));
+        BankApi.saveState(bank);
+        BankApi.close(bank);
+        return dir;
+    }
+
+    static void delete(File dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir.toPath())) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+
+    private interface Op {
+        void run(int i) throws Throwable;
+    }
+
+    private static void run(IntStream range, Op op) {
+        range.parallel().forEach(i -> {
+            try {
+                op.run(i);
+            } catch (Throwable t) {
+                throw new IllegalStateException("Fixture setup failed", t);
+            }
+        });
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+// Cost of a checkpoint and of a cold start, single-threaded by nature
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class StoredBank {
+        @Param({"1000", "100000"})
+        public int accountCount;
+
+        @Param({"0", "100000"})
+        public int historySize;
+
+        File dir;
+        Object bank;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            dir = Fixture.build(accountCount, historySize);
+            bank = BankApi.newBank("bench", dir);
+            BankApi.loadState(bank);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable {
+            BankApi.close(bank);
+            Fixture.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public void saveState(StoredBank s) throws Throwable {
+        BankApi.saveState(s.bank);
+    }
+
+    // Files with no Bank holding them, since a data directory admits one open Bank
+    @State(Scope.Benchmark)
+    public static class StoredFiles {
+        @Param({"1000", "100000"})
+        public int accountCount;
+
+        @Param({"0", "100000"})
+        public int historySize;
+
+        File dir;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            dir = Fixture.build(accountCount, historySize);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable {
+            Fixture.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public Object loadState(StoredFiles s) throws Throwable {
+        Object fresh = BankApi.newBank("bench", s.dir);
+        BankApi.loadState(fresh);
+        BankApi.close(fresh);
+        return fresh;
+    }
+}